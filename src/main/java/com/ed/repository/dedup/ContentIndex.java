@@ -0,0 +1,207 @@
+package com.ed.repository.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import com.ed.repository.filesystem.CommitEvent;
+import com.ed.repository.filesystem.CommitListener;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+import com.ed.repository.filesystem.IndexFileEntry;
+import com.ed.repository.filesystem.RepositoryFileResolver;
+import com.ed.repository.tiering.ColdTier;
+
+/**
+ * Finds the stored versions by the digest of their content, so that an upload of a content the
+ * repository already has can be recorded without receiving it again.
+ * <p>
+ * The client first offers the digest and the size of its content. If a version with that content
+ * is stored, the client is challenged to prove that it has the content, and not only its digest,
+ * which would otherwise give access to any file whose digest is known: it has to hash a random
+ * range of the content with a random nonce (see {@link UploadChallenge}). If the answer is right,
+ * the new version is a hard link to the stored one.
+ * <p>
+ * A content that isn't stored gets a challenge too, which no answer passes, so that offering a
+ * digest doesn't tell whether someone else has uploaded that content. Only the answer, once the
+ * content is proven, does.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class ContentIndex implements CommitListener, AutoCloseable {
+
+  static final int RANGE_LENGTH = 4096;
+  static final int NONCE_LENGTH = 16;
+  static final long CHALLENGE_TTL_MILLIS = 5 * 60 * 1000;
+  static final int MAX_PENDING_CHALLENGES = 10_000;
+  static final int MAX_PENDING_CHALLENGES_PER_USER = 16;
+
+  private static volatile ContentIndex defaultIndex = null;
+
+  // a version file with each content, the latest one committed
+  private final Map<String, Path> versions = new ConcurrentHashMap<>();
+  private final Map<String, Negotiation> negotiations = new ConcurrentHashMap<>();
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * The index used to negotiate uploads, or null if every upload sends its content
+   */
+  public static ContentIndex getDefault() {
+    return defaultIndex;
+  }
+
+  public static void setDefault(ContentIndex index) {
+    defaultIndex = index;
+  }
+
+  /**
+   * Index the versions under {@code roots} and keep up to date from now on
+   *
+   * @param roots - the directories to index
+   * @throws IOException if an I/O error occurs
+   */
+  public void start(List<Path> roots) throws IOException {
+    // listen first, so that no commit is missed while rebuilding
+    FileSystemEnvironmentResolver.addCommitListener(this);
+    rebuild(roots);
+  }
+
+  @Override
+  public void close() {
+    FileSystemEnvironmentResolver.removeCommitListener(this);
+  }
+
+  /**
+   * Index again every version under {@code roots}, from the digests of the index files
+   */
+  public void rebuild(List<Path> roots) throws IOException {
+    for (Path root : roots) {
+      for (Path directory : FileSystemEnvironmentResolver.findVersionDirectories(root)) {
+        Map<Integer, Path> versionFiles = FileSystemEnvironmentResolver.listVersions(directory);
+        Path indexFile = new RepositoryFileResolver(directory).getIndexFilePath();
+        for (IndexFileEntry entry : IndexFileEntry.readEntries(indexFile)) {
+          Path versionFile = versionFiles.get(entry.getKey());
+          if (entry.getDigest() != null && versionFile != null
+              && !ColdTier.isCompressed(versionFile)) {
+            versions.put(entry.getDigest(), versionFile);
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void committed(CommitEvent event) {
+    if (event.digest() != null) {
+      versions.put(event.digest(), event.versionFile());
+    }
+  }
+
+  /**
+   * How many different contents are indexed
+   */
+  public int size() {
+    return versions.size();
+  }
+
+  /**
+   * Offer a content to be recorded as a new version of {@code path}, by its digest
+   *
+   * @param path - the file's path of the client
+   * @param username - who's uploading
+   * @param digest - the SHA-256 of the content, in hexadecimal
+   * @param size - the content's size in bytes
+   * @return the challenge to answer with {@link #accept(String, String)}, whether the content is
+   *         stored or not, or null if the content has to be uploaded: the offer is invalid, or
+   *         too many challenges are pending
+   * @throws IOException if an I/O error occurs
+   */
+  public UploadChallenge offer(Path path, String username, String digest, long size)
+      throws IOException {
+    if (digest == null || size < 0) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    negotiations.values().removeIf(negotiation -> negotiation.expiry < now);
+    // the client can always upload
+    if (negotiations.size() >= MAX_PENDING_CHALLENGES) {
+      return null;
+    }
+    if (negotiations.values().stream()
+        .filter(negotiation -> negotiation.username.equals(username))
+        .count() >= MAX_PENDING_CHALLENGES_PER_USER) {
+      return null;
+    }
+    // null for a decoy, that no answer passes
+    Path existing = find(digest, size);
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+    int length = (int) Math.min(RANGE_LENGTH, size);
+    long offset = random.nextLong(size - length + 1);
+    UploadChallenge challenge = new UploadChallenge(UUID.randomUUID().toString(),
+        HexFormat.of().formatHex(nonce), offset, length);
+    negotiations.put(challenge.id(), new Negotiation(challenge, path, username, digest, size,
+        existing, now + CHALLENGE_TTL_MILLIS));
+    return challenge;
+  }
+
+  /**
+   * Record the offered content as a new version, if {@code proof} answers the challenge
+   *
+   * @param challengeId - the id of the challenge given by
+   *        {@link #offer(Path, String, String, long)}
+   * @param proof - the answer, in hexadecimal
+   * @return the version committed, or null if the content has to be uploaded: the answer is wrong,
+   *         the challenge expired, or the content isn't stored
+   * @throws IOException if an I/O error occurs
+   */
+  public CommitEvent accept(String challengeId, String proof) throws IOException {
+    Negotiation negotiation = negotiations.remove(challengeId);
+    if (negotiation == null || negotiation.expiry < System.currentTimeMillis()
+        || negotiation.existing == null) {
+      return null;
+    }
+    Path existing = negotiation.existing;
+    String expected;
+    try (InputStream in = Files.newInputStream(existing)) {
+      expected = negotiation.challenge.prove(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    if (proof == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+        proof.getBytes(StandardCharsets.US_ASCII))) {
+      return null;
+    }
+    try {
+      return FileSystemEnvironmentResolver.linkVersion(existing, negotiation.path,
+          negotiation.username, negotiation.digest);
+    } catch (NoSuchFileException e) {
+      return null; // removed or moved to the cold tier meanwhile
+    }
+  }
+
+  private Path find(String digest, long size) throws IOException {
+    Path existing = versions.get(digest);
+    if (existing == null) {
+      return null;
+    }
+    if (!Files.isRegularFile(existing) || Files.size(existing) != size) {
+      versions.remove(digest, existing);
+      return null;
+    }
+    return existing;
+  }
+
+  private record Negotiation(UploadChallenge challenge, Path path, String username,
+      String digest, long size, Path existing, long expiry) {
+  }
+}
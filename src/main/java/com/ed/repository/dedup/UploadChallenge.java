@@ -0,0 +1,46 @@
+package com.ed.repository.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import com.ed.repository.integrity.Digests;
+
+/**
+ * What the client has to answer to have its upload recorded without sending the content: the
+ * SHA-256 of the {@code nonce} followed by {@code length} bytes of the content from
+ * {@code offset}. Knowing the content's digest isn't enough to answer it, only having the content
+ * is.
+ * 
+ * @param id - identifies the challenge when answering it
+ * @param nonce - random bytes, in hexadecimal
+ * @param offset - where the range starts in the content
+ * @param length - the length of the range
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record UploadChallenge(String id, String nonce, long offset, int length) {
+
+  /**
+   * The answer to this challenge for a local file
+   */
+  public String prove(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return prove(in);
+    }
+  }
+
+  /**
+   * The answer to this challenge for a content read from its beginning. The stream isn't closed.
+   */
+  public String prove(InputStream content) throws IOException {
+    MessageDigest digest = Digests.newDigest();
+    digest.update(HexFormat.of().parseHex(nonce));
+    content.skipNBytes(offset);
+    digest.update(content.readNBytes(length));
+    return Digests.toHex(digest.digest());
+  }
+}
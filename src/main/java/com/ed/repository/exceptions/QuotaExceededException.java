@@ -0,0 +1,16 @@
+package com.ed.repository.exceptions;
+
+public class QuotaExceededException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  String message;
+
+  public QuotaExceededException(String message) {
+    super();
+    this.message = message;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+}
@@ -0,0 +1,46 @@
+package com.ed.repository.feed;
+
+import java.nio.file.Path;
+
+/**
+ * A committed version, as told by the {@link ChangeFeed}
+ * 
+ * @param sequence - the position of this change in the feed, to resume from
+ * @param clientPath - the client's path of the file
+ * @param version - the version committed
+ * @param uploader - who uploaded it
+ * @param timestamp - when it was committed, in epoch millis
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record Change(long sequence, Path clientPath, int version, String uploader,
+    long timestamp) {
+
+  /**
+   * This change as a server-sent event. Its id is the sequence, so a client that reconnects with
+   * it as Last-Event-ID resumes right after this change.
+   */
+  public String toServerSentEvent() {
+    String path = clientPath.toString().replace(clientPath.getFileSystem().getSeparator(), "/");
+    return "id: " + sequence + "\nevent: commit\ndata: {\"path\":" + quote(path) + ",\"version\":"
+        + version + ",\"uploader\":" + quote(uploader) + "}\n\n";
+  }
+
+  private static String quote(String value) {
+    if (value == null) {
+      return "null";
+    }
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+}
@@ -0,0 +1,259 @@
+package com.ed.repository.feed;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.ed.repository.filesystem.CommitEvent;
+import com.ed.repository.filesystem.CommitListener;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+
+/**
+ * A feed of every committed version, that clients subscribe to by path prefix instead of polling
+ * their tree.
+ * <p>
+ * The latest {@code capacity} changes are kept in a ring buffer, each with a sequence number, so a
+ * client that reconnects resumes from the last sequence it saw. A subscription is only a cursor in
+ * the buffer: it's found by the prefixes of the committed path and given to the shared pool only
+ * when it has changes to deliver, so an idle subscriber costs no thread and no work per commit.
+ * <p>
+ * The sequences of a feed start from the time it was created, so they're greater than those of
+ * any feed before it: a client that reconnects after a restart with the last sequence it saw is
+ * told it missed changes, instead of waiting for the new feed to catch up with its cursor.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class ChangeFeed implements CommitListener, AutoCloseable {
+
+  static final int DEFAULT_CAPACITY = 64 * 1024;
+  static final int DEFAULT_THREADS = 2;
+  static final int BATCH_SIZE = 256;
+  // room for a million changes per millisecond before a feed runs into the next one's sequences
+  static final long SEQUENCES_PER_MILLI = 1_000_000;
+
+  private final Change[] ring;
+  private final long firstSequence = System.currentTimeMillis() * SEQUENCES_PER_MILLI;
+  private long nextSequence = firstSequence;
+  private final Map<Path, Set<Subscription>> subscriptions = new ConcurrentHashMap<>();
+  private final Executor executor;
+  private final ExecutorService ownExecutor;
+
+  public ChangeFeed() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity - how many changes are kept for subscribers that fall behind or reconnect
+   */
+  public ChangeFeed(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * @param capacity - how many changes are kept for subscribers that fall behind or reconnect
+   * @param executor - delivers the changes to the listeners, or null for a pool of its own
+   */
+  public ChangeFeed(int capacity, Executor executor) {
+    super();
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The feed must keep at least one change");
+    }
+    this.ring = new Change[capacity];
+    this.ownExecutor = executor == null ? Executors.newFixedThreadPool(DEFAULT_THREADS, runnable -> {
+      Thread thread = new Thread(runnable, "change-feed");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+    this.executor = executor == null ? ownExecutor : executor;
+  }
+
+  /**
+   * Start following the commits
+   */
+  public void start() {
+    FileSystemEnvironmentResolver.addCommitListener(this);
+  }
+
+  /**
+   * Stop following the commits. The subscriptions receive nothing else.
+   */
+  @Override
+  public void close() {
+    FileSystemEnvironmentResolver.removeCommitListener(this);
+    if (ownExecutor != null) {
+      ownExecutor.shutdownNow();
+    }
+  }
+
+  @Override
+  public void committed(CommitEvent event) {
+    Change change = append(event);
+    Path path = key(change.clientPath());
+    while (path != null) {
+      notify(subscriptions.get(path));
+      path = path.getParent();
+    }
+  }
+
+  /**
+   * Receive the changes under {@code prefix}, from now on
+   */
+  public Subscription subscribe(Path prefix, ChangeListener listener) {
+    return subscribe(prefix, getLastSequence(), listener);
+  }
+
+  /**
+   * Receive the changes under {@code prefix} that come after {@code lastSequence}. If some of them
+   * were already dropped from the buffer, the listener is told first (see
+   * {@link ChangeListener#missed(long, long)}).
+   *
+   * @param prefix - a client's directory, or a file
+   * @param lastSequence - the last sequence the client received, or 0 for all that are kept
+   * @param listener - receives the changes
+   * @return the subscription, to be closed when the client goes away
+   */
+  public Subscription subscribe(Path prefix, long lastSequence, ChangeListener listener) {
+    long cursor = lastSequence;
+    if (lastSequence == 0) {
+      cursor = firstSequence - 1;
+    } else if (lastSequence > getLastSequence()) {
+      cursor = 0; // from a feed that had this one's sequences, the clock went back
+    }
+    Subscription subscription = new Subscription(key(prefix), cursor, listener);
+    subscriptions.compute(subscription.prefix, (p, subscribers) -> {
+      Set<Subscription> added = subscribers != null ? subscribers : ConcurrentHashMap.newKeySet();
+      added.add(subscription);
+      return added;
+    });
+    // changes committed before it was added aren't notified
+    if (cursor < getLastSequence()) {
+      subscription.schedule();
+    }
+    return subscription;
+  }
+
+  /**
+   * The sequence of the latest change, or the one before the first if there was none
+   */
+  public synchronized long getLastSequence() {
+    return nextSequence - 1;
+  }
+
+  /**
+   * The sequence of the oldest change still kept
+   */
+  public synchronized long getOldestSequence() {
+    return Math.max(firstSequence, nextSequence - ring.length);
+  }
+
+  /**
+   * The changes kept after {@code lastSequence}, up to {@code max}, for clients that would rather
+   * poll the feed
+   */
+  public synchronized List<Change> read(long lastSequence, int max) {
+    List<Change> changes = new ArrayList<>();
+    long sequence = Math.max(lastSequence + 1, getOldestSequence());
+    for (; sequence < nextSequence && changes.size() < max; sequence++) {
+      changes.add(ring[(int) (sequence % ring.length)]);
+    }
+    return changes;
+  }
+
+  private synchronized Change append(CommitEvent event) {
+    Change change = new Change(nextSequence, event.clientPath(), event.version(),
+        event.username(), event.timestamp());
+    ring[(int) (nextSequence % ring.length)] = change;
+    nextSequence++;
+    return change;
+  }
+
+  private static void notify(Set<Subscription> subscribers) {
+    if (subscribers != null) {
+      subscribers.forEach(Subscription::schedule);
+    }
+  }
+
+  private static Path key(Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+
+  /**
+   * A subscriber's position in the feed
+   */
+  public class Subscription implements AutoCloseable {
+
+    private final Path prefix;
+    private final ChangeListener listener;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long cursor;
+    private volatile boolean closed = false;
+
+    private Subscription(Path prefix, long lastSequence, ChangeListener listener) {
+      this.prefix = prefix;
+      this.cursor = lastSequence;
+      this.listener = listener;
+    }
+
+    /**
+     * The sequence of the last change delivered, or skipped because it was under another prefix
+     */
+    public long getLastSequence() {
+      return cursor;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      subscriptions.computeIfPresent(prefix, (p, subscribers) -> {
+        subscribers.remove(this);
+        return subscribers.isEmpty() ? null : subscribers;
+      });
+    }
+
+    private void schedule() {
+      if (!closed && scheduled.compareAndSet(false, true)) {
+        executor.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      try {
+        List<Change> changes;
+        do {
+          long oldest = getOldestSequence();
+          if (cursor + 1 < oldest) {
+            listener.missed(cursor + 1, oldest - 1);
+            cursor = oldest - 1;
+          }
+          changes = read(cursor, BATCH_SIZE);
+          for (Change change : changes) {
+            if (closed) {
+              return;
+            }
+            if (key(change.clientPath()).startsWith(prefix)) {
+              listener.changed(change);
+            }
+            cursor = change.sequence();
+          }
+        } while (!changes.isEmpty());
+      } catch (RuntimeException e) {
+        // the client is gone, or broken, either way it can't follow the feed anymore
+        close();
+        throw e;
+      } finally {
+        scheduled.set(false);
+      }
+      // a change appended after the last read may have found this still scheduled
+      if (cursor < ChangeFeed.this.getLastSequence()) {
+        schedule();
+      }
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.ed.repository.feed;
+
+/**
+ * Receives the changes of a {@link ChangeFeed} subscription, in sequence order, one at a time.
+ * <p>
+ * Subscriptions are served by a small shared pool, so a listener should write the change to its
+ * client and return, without waiting for anything else.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+@FunctionalInterface
+public interface ChangeListener {
+
+  void changed(Change change);
+
+  /**
+   * Called when the changes from {@code fromSequence} to {@code toSequence} were dropped from the
+   * feed before they could be delivered. The subscriber has to list its files again.
+   */
+  default void missed(long fromSequence, long toSequence) {
+  }
+}
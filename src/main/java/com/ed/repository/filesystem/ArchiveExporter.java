@@ -0,0 +1,328 @@
+package com.ed.repository.filesystem;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import com.ed.repository.exceptions.RepositoryManagementException;
+
+/**
+ * Streams a list of {@link Pack}s as a single ZIP or TAR archive, each entry named after the
+ * pack's client side destination.
+ * <p>
+ * The archive is never built on disk. While one entry is being written, the next
+ * {@code readAhead - 1} files are read in parallel; only files up to {@code prefetchLimit} bytes
+ * are held in memory, so the memory used is bounded by {@code readAhead * prefetchLimit}. Bigger
+ * files are streamed straight from disk, and in TAR archives they are transferred with
+ * {@link FileChannel#transferTo}, which avoids copying them through the heap, unless they're
+ * compressed in the cold tier.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class ArchiveExporter {
+
+  public enum Format {
+    ZIP, TAR
+  }
+
+  static final int DEFAULT_READ_AHEAD = 4;
+  static final int DEFAULT_PREFETCH_LIMIT = 1024 * 1024;
+
+  private final int readAhead;
+  private final int prefetchLimit;
+
+  public ArchiveExporter() {
+    this(DEFAULT_READ_AHEAD, DEFAULT_PREFETCH_LIMIT);
+  }
+
+  /**
+   * @param readAhead - how many files are read at the same time, counting the one being written
+   * @param prefetchLimit - the biggest file, in bytes, that is read ahead into memory
+   */
+  public ArchiveExporter(int readAhead, int prefetchLimit) {
+    super();
+    if (readAhead < 1 || prefetchLimit < 0) {
+      throw new IllegalArgumentException("Invalid read ahead configuration");
+    }
+    this.readAhead = readAhead;
+    this.prefetchLimit = prefetchLimit;
+  }
+
+  /**
+   * Write all {@code packs} to {@code out}. The entries are named with the pack's destination
+   * relative to the client side of {@code root}. The stream is finished but not closed.
+   *
+   * @param root - the path that was searched to obtain the packs
+   * @param packs - the files to archive
+   * @param out - where the archive is written
+   * @param format - the archive's format
+   * @throws IOException if an I/O error occurs
+   */
+  public void export(Path root, List<Pack> packs, OutputStream out, Format format)
+      throws IOException {
+    Path clientRoot = clientRoot(root);
+    ExecutorService executor = Executors.newFixedThreadPool(readAhead, runnable -> {
+      Thread thread = new Thread(runnable, "archive-read-ahead");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      ArchiveWriter writer =
+          format == Format.ZIP ? new ZipArchiveWriter(out) : new TarArchiveWriter(out);
+      Deque<Future<Entry>> window = new ArrayDeque<>();
+      Iterator<Pack> iterator = packs.iterator();
+      while (window.size() < readAhead && iterator.hasNext()) {
+        window.add(submit(executor, clientRoot, iterator.next()));
+      }
+      while (!window.isEmpty()) {
+        // the next file is only read once this one is written, so that no more than readAhead
+        // files are ever held in memory
+        writer.write(await(window.poll()));
+        if (iterator.hasNext()) {
+          window.add(submit(executor, clientRoot, iterator.next()));
+        }
+      }
+      writer.finish();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Future<Entry> submit(ExecutorService executor, Path clientRoot, Pack pack) {
+    return executor.submit(() -> {
+      long size = pack.getSize();
+      byte[] bytes = null;
+      if (size <= prefetchLimit) {
+        try (InputStream in = pack.openContent()) {
+          bytes = in.readAllBytes();
+        }
+      }
+      String name = entryName(clientRoot, pack.getDestination());
+      return new Entry(name, pack, size, pack.getLastModifiedTime().toMillis(), bytes);
+    });
+  }
+
+  private static Entry await(Future<Entry> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryManagementException("Archive export was interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RepositoryManagementException(e.getCause().getMessage());
+    }
+  }
+
+  /**
+   * The client side directory that the entries' names are relative to.
+   */
+  private static Path clientRoot(Path root) throws IOException {
+    if (PathParser.isRepoFormat(root)) {
+      return new RepositoryFileResolver(root).getClientDirectoryPath();
+    }
+    return root;
+  }
+
+  private static String entryName(Path clientRoot, Path destination) {
+    Path name = destination.startsWith(clientRoot) && !destination.equals(clientRoot)
+        ? clientRoot.relativize(destination)
+        : destination.getFileName();
+    return name.toString().replace(name.getFileSystem().getSeparator(), "/");
+  }
+
+  /**
+   * One file to archive. {@code bytes} is null when the file was too big to be read ahead.
+   */
+  private record Entry(String name, Pack pack, long size, long lastModified, byte[] bytes) {
+  }
+
+  private interface ArchiveWriter {
+
+    void write(Entry entry) throws IOException;
+
+    void finish() throws IOException;
+  }
+
+  /**
+   * Read ahead entries are STORED, since their CRC can be computed from memory. The others are
+   * DEFLATED while being streamed, as a STORED entry would need a second pass over the file.
+   */
+  private static class ZipArchiveWriter implements ArchiveWriter {
+
+    private final ZipOutputStream zip;
+
+    ZipArchiveWriter(OutputStream out) {
+      this.zip = new ZipOutputStream(out);
+    }
+
+    @Override
+    public void write(Entry entry) throws IOException {
+      ZipEntry zipEntry = new ZipEntry(entry.name());
+      zipEntry.setTime(entry.lastModified());
+      if (entry.bytes() != null) {
+        CRC32 crc = new CRC32();
+        crc.update(entry.bytes());
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(entry.size());
+        zipEntry.setCompressedSize(entry.size());
+        zipEntry.setCrc(crc.getValue());
+        zip.putNextEntry(zipEntry);
+        zip.write(entry.bytes());
+      } else {
+        zipEntry.setMethod(ZipEntry.DEFLATED);
+        zip.putNextEntry(zipEntry);
+        try (InputStream in = entry.pack().openContent()) {
+          in.transferTo(zip);
+        }
+      }
+      zip.closeEntry();
+    }
+
+    @Override
+    public void finish() throws IOException {
+      zip.finish();
+      zip.flush();
+    }
+  }
+
+  /**
+   * A ustar archive. Every entry is stored, so files that weren't read ahead go from the file's
+   * channel to the output channel without passing through the heap.
+   */
+  private static class TarArchiveWriter implements ArchiveWriter {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+
+    TarArchiveWriter(OutputStream out) {
+      this.out = out;
+      this.channel = out instanceof FileOutputStream fileOut ? fileOut.getChannel()
+          : Channels.newChannel(out);
+    }
+
+    @Override
+    public void write(Entry entry) throws IOException {
+      writeFully(ByteBuffer.wrap(header(entry)));
+      if (entry.bytes() != null) {
+        writeFully(ByteBuffer.wrap(entry.bytes()));
+      } else {
+        FileChannel fileChannel = entry.pack().openChannel();
+        if (fileChannel != null) {
+          try (fileChannel) {
+            long position = 0;
+            while (position < entry.size()) {
+              position += fileChannel.transferTo(position, entry.size() - position, channel);
+            }
+          }
+        } else {
+          // a compressed copy in the cold tier
+          try (InputStream in = entry.pack().openContent()) {
+            if (in.transferTo(out) != entry.size()) {
+              throw new IOException("The size of " + entry.name() + " changed while archiving it");
+            }
+          }
+        }
+      }
+      int padding = (int) ((BLOCK_SIZE - entry.size() % BLOCK_SIZE) % BLOCK_SIZE);
+      writeFully(ByteBuffer.allocate(padding));
+    }
+
+    @Override
+    public void finish() throws IOException {
+      // the end of the archive is marked by two empty blocks
+      writeFully(ByteBuffer.allocate(2 * BLOCK_SIZE));
+      out.flush();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    private static byte[] header(Entry entry) {
+      byte[] header = new byte[BLOCK_SIZE];
+      byte[] name = entry.name().getBytes(StandardCharsets.UTF_8);
+      if (name.length <= 100) {
+        System.arraycopy(name, 0, header, 0, name.length);
+      } else {
+        // split the name between the 'prefix' and the 'name' fields, at a '/'
+        int split = entry.name().lastIndexOf('/');
+        byte[] prefix = split > 0 ? entry.name().substring(0, split).getBytes(StandardCharsets.UTF_8)
+            : name;
+        byte[] suffix = split > 0
+            ? entry.name().substring(split + 1).getBytes(StandardCharsets.UTF_8)
+            : name;
+        if (split <= 0 || prefix.length > 155 || suffix.length > 100) {
+          throw new RepositoryManagementException(
+              String.format("The path %s is too long for a tar archive", entry.name()));
+        }
+        System.arraycopy(suffix, 0, header, 0, suffix.length);
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+      }
+      octal(header, 100, 8, 0644); // mode
+      octal(header, 108, 8, 0); // uid
+      octal(header, 116, 8, 0); // gid
+      size(header, entry.size());
+      octal(header, 136, 12, entry.lastModified() / 1000);
+      header[156] = '0'; // regular file
+      System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+      header[263] = '0';
+      header[264] = '0';
+
+      // the checksum is computed with its own field filled with spaces
+      for (int i = 148; i < 156; i++) {
+        header[i] = ' ';
+      }
+      long checksum = 0;
+      for (byte b : header) {
+        checksum += b & 0xFF;
+      }
+      octal(header, 148, 7, checksum);
+      return header;
+    }
+
+    private static void size(byte[] header, long size) {
+      if (size < 077777777777L) {
+        octal(header, 124, 12, size);
+      } else {
+        // files of 8GB or more use the base-256 extension
+        header[124] = (byte) 0x80;
+        for (int i = 135; i > 124; i--) {
+          header[i] = (byte) size;
+          size >>>= 8;
+        }
+      }
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+      String digits = String.format("%0" + (length - 1) + "o", value);
+      byte[] bytes = digits.getBytes(StandardCharsets.US_ASCII);
+      System.arraycopy(bytes, 0, header, offset, length - 1);
+      header[offset + length - 1] = 0;
+    }
+  }
+}
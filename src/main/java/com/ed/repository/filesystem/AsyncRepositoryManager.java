@@ -0,0 +1,139 @@
+package com.ed.repository.filesystem;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import com.ed.repository.exceptions.RepositoryManagementException;
+
+/**
+ * The non-blocking counterpart of a {@link RepositoryManager}. Every operation runs on the
+ * configured executor and its result, or its {@link RepositoryManagementException}, is delivered
+ * through a {@link CompletableFuture}.
+ * <p>
+ * When the executor refuses a task, for example because the queue of a
+ * {@link #boundedIoPool(int, int)} is full, the future completes exceptionally instead of
+ * blocking the caller.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class AsyncRepositoryManager {
+
+  /**
+   * One file to upload with {@link AsyncRepositoryManager#putAll(List, CopyOption...)}
+   */
+  public record Upload(InputStream in, Path path, String username) {
+  }
+
+  private final RepositoryManager repositoryManager;
+  private final Executor executor;
+
+  /**
+   * @param repositoryManager - the blocking manager that does the work
+   * @param executor - where the operations run
+   */
+  public AsyncRepositoryManager(RepositoryManager repositoryManager, Executor executor) {
+    super();
+    this.repositoryManager = repositoryManager;
+    this.executor = executor;
+  }
+
+  /**
+   * A pool of {@code threads} I/O threads that accepts at most {@code queueCapacity} waiting
+   * operations. The threads are daemons, so the pool doesn't need to be shut down on exit.
+   */
+  public static ExecutorService boundedIoPool(int threads, int queueCapacity) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = runnable -> {
+      Thread thread = new Thread(runnable, "repository-io-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), factory, new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * @see RepositoryManager#put(InputStream, Path, String, CopyOption...)
+   */
+  public CompletableFuture<Boolean> put(final InputStream in, Path path, final String username,
+      CopyOption... options) {
+    return submit(() -> repositoryManager.put(in, path, username, options));
+  }
+
+  /**
+   * @see RepositoryManager#get(Path)
+   */
+  public CompletableFuture<List<Pack>> get(Path path) {
+    return submit(() -> repositoryManager.get(path));
+  }
+
+  /**
+   * @see RepositoryManager#export(Path, OutputStream, ArchiveExporter.Format)
+   */
+  public CompletableFuture<Void> export(Path path, OutputStream out,
+      ArchiveExporter.Format format) {
+    return submit(() -> {
+      repositoryManager.export(path, out, format);
+      return null;
+    });
+  }
+
+  /**
+   * Upload several files at once. Each one runs as its own task, so they are written in parallel
+   * as far as the executor allows.
+   * 
+   * @param uploads - the files to upload
+   * @param options - some copy options, used for all files
+   * @return the result of each upload, in the same order. If any of them fails, the future
+   *         completes with that failure
+   */
+  public CompletableFuture<List<Boolean>> putAll(List<Upload> uploads, CopyOption... options) {
+    List<CompletableFuture<Boolean>> futures = uploads.stream()
+        .map(upload -> put(upload.in(), upload.path(), upload.username(), options)).toList();
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+        .thenApply(done -> futures.stream().map(CompletableFuture::join).toList());
+  }
+
+  /**
+   * Search several paths at once.
+   * 
+   * @param paths - the paths to search
+   * @return the subfiles of each path, in the same order as {@code paths}
+   */
+  public CompletableFuture<Map<Path, List<Pack>>> getAll(List<Path> paths) {
+    Map<Path, CompletableFuture<List<Pack>>> futures = new LinkedHashMap<>();
+    for (Path path : paths) {
+      futures.put(path, get(path));
+    }
+    return CompletableFuture.allOf(futures.values().toArray(CompletableFuture[]::new))
+        .thenApply(done -> {
+          Map<Path, List<Pack>> result = new LinkedHashMap<>();
+          futures.forEach((path, future) -> result.put(path, future.join()));
+          return result;
+        });
+  }
+
+  private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+    try {
+      return CompletableFuture.supplyAsync(operation, executor);
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.failedFuture(
+          new RepositoryManagementException("Too many pending repository operations", e));
+    }
+  }
+}
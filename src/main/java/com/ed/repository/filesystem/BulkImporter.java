@@ -0,0 +1,410 @@
+package com.ed.repository.filesystem;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import com.ed.repository.exceptions.RepositoryManagementException;
+import com.ed.repository.integrity.Digests;
+
+/**
+ * Imports an existing directory tree into the repository: every file becomes the first version
+ * of a file in the destination, {@code filename#EXT/filename-v1.ext} plus its index entry, as if
+ * it had been uploaded by {@code username}. It's the counterpart of {@link ArchiveExporter}.
+ * <p>
+ * One thread walks the source and hands the files to the importing threads through a bounded
+ * queue, so the walk never gets far ahead of the work and the memory used doesn't grow with the
+ * tree. Every file is read once, to hash it or to copy it. Linking is off unless
+ * {@link #setLink(boolean)} turns it on: then the versions are hard links to the source files
+ * whenever both are in the same filesystem, which saves writing and storing the content again,
+ * but the source files must not be changed in place afterwards, or the versions change too.
+ * <p>
+ * Every imported file is appended to a checkpoint file. An import that is run again with the same
+ * checkpoint skips what was done, so it resumes where a crashed one stopped. A file whose
+ * destination already has a version is skipped too, like one that was committed but not
+ * checkpointed yet when the import crashed, or one that a user uploaded while the import was
+ * running: whether there's a version is decided when the version is committed, under the file's
+ * lock (see {@link CommitOption#FIRST_VERSION_ONLY}). The files that failed aren't checkpointed,
+ * so they are tried again, like the ones in directories that couldn't be read.
+ * <p>
+ * Usage: {@code BulkImporter [--link] <source> <destination> <username> [checkpoint] [threads]}
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class BulkImporter {
+
+  /**
+   * How far an import went
+   *
+   * @param files - the files imported
+   * @param bytes - their total size
+   * @param skipped - the files skipped because they were already imported
+   * @param failed - the files that couldn't be imported
+   * @param elapsed - the time since the import started
+   */
+  public record Progress(long files, long bytes, long skipped, long failed, Duration elapsed) {
+
+    public double filesPerSecond() {
+      return files / seconds();
+    }
+
+    public double megabytesPerSecond() {
+      return bytes / (1024.0 * 1024.0) / seconds();
+    }
+
+    private double seconds() {
+      return Math.max(elapsed.toNanos(), 1) / 1e9;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d files, %.1f MB in %ds (%.1f files/s, %.1f MB/s), %d skipped, %d failed", files,
+          bytes / (1024.0 * 1024.0), elapsed.toSeconds(), filesPerSecond(), megabytesPerSecond(),
+          skipped, failed);
+    }
+  }
+
+  static final int DEFAULT_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+  static final int DEFAULT_QUEUE_CAPACITY = 1024;
+  static final Duration DEFAULT_REPORT_INTERVAL = Duration.ofSeconds(5);
+  static final int MAX_REPORTED_FAILURES = 100;
+
+  // tells an importing thread that the walk is over
+  private static final Path END = Path.of("");
+
+  private final int threads;
+  private final int queueCapacity;
+  private boolean link = false;
+  private Consumer<Progress> progressListener = null;
+  private Duration reportInterval = DEFAULT_REPORT_INTERVAL;
+
+  // the state of the import that is running
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final ConcurrentLinkedQueue<Path> failures = new ConcurrentLinkedQueue<>();
+  private volatile IOException checkpointFailure;
+  private volatile long startNanos;
+
+  public BulkImporter() {
+    this(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param threads - how many files are imported at the same time
+   * @param queueCapacity - how many files the walk can be ahead of the import
+   */
+  public BulkImporter(int threads, int queueCapacity) {
+    super();
+    if (threads < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("Invalid import configuration");
+    }
+    this.threads = threads;
+    this.queueCapacity = queueCapacity;
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean link = args.length > 0 && args[0].equals("--link");
+    if (link) {
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    if (args.length < 3) {
+      System.err.println("Usage: BulkImporter [--link] <source> <destination> <username>"
+          + " [checkpoint] [threads]");
+      System.exit(1);
+    }
+    Path checkpoint = args.length > 3 ? Path.of(args[3]) : null;
+    int threads = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_THREADS;
+    BulkImporter importer = new BulkImporter(threads, DEFAULT_QUEUE_CAPACITY);
+    importer.setLink(link);
+    PrintStream out = System.out;
+    importer.setProgressListener(out::println, DEFAULT_REPORT_INTERVAL);
+    Progress progress =
+        importer.importTree(Path.of(args[0]), Path.of(args[1]), args[2], checkpoint);
+    out.println(progress);
+    for (Path failure : importer.getFailures()) {
+      out.println("Failed: " + failure);
+    }
+  }
+
+  /**
+   * Whether the versions are hard linked to the source files when possible, instead of copied.
+   * It's off by default.
+   */
+  public void setLink(boolean link) {
+    this.link = link;
+  }
+
+  /**
+   * Report the progress of every import to {@code listener} each {@code interval}, and once more
+   * at its end
+   */
+  public void setProgressListener(Consumer<Progress> listener, Duration interval) {
+    this.progressListener = listener;
+    this.reportInterval = interval;
+  }
+
+  /**
+   * Import every regular file under {@code source}. Symbolic links aren't followed.
+   *
+   * @param source - the directory to import
+   * @param destination - the client's path where the tree goes
+   * @param username - the uploader of the imported versions
+   * @param checkpoint - where the progress is kept, to resume the import, or null to not keep it
+   * @return how the import went
+   * @throws RepositoryManagementException if the import is interrupted
+   * @throws IOException if the source can't be walked or the checkpoint can't be written. When the
+   *         checkpoint fails, the import goes on to the end anyway: an import run again skips the
+   *         files that have their version already
+   */
+  public synchronized Progress importTree(Path source, Path destination, String username,
+      Path checkpoint) throws IOException {
+    files.set(0);
+    bytes.set(0);
+    skipped.set(0);
+    failed.set(0);
+    failures.clear();
+    checkpointFailure = null;
+    startNanos = System.nanoTime();
+
+    Set<String> done = readCheckpoint(checkpoint);
+    BlockingQueue<Path> queue = new ArrayBlockingQueue<>(queueCapacity);
+    ScheduledExecutorService reporter = startReporter();
+    try (BufferedWriter checkpointWriter = checkpoint == null ? null
+        : Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8, CREATE, APPEND)) {
+      List<Thread> workers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        Thread worker = new Thread(
+            () -> work(queue, source, destination, username, checkpointWriter),
+            "bulk-import-" + i);
+        worker.setDaemon(true);
+        worker.start();
+        workers.add(worker);
+      }
+      try {
+        walk(source, done, queue);
+      } finally {
+        finish(queue, workers);
+      }
+    } finally {
+      if (reporter != null) {
+        reporter.shutdownNow();
+      }
+    }
+    Progress progress = getProgress();
+    if (progressListener != null) {
+      progressListener.accept(progress);
+    }
+    if (checkpointFailure != null) {
+      throw checkpointFailure;
+    }
+    return progress;
+  }
+
+  /**
+   * The progress of the running import, or of the last one
+   */
+  public Progress getProgress() {
+    return new Progress(files.get(), bytes.get(), skipped.get(), failed.get(),
+        Duration.ofNanos(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * The first files that couldn't be imported
+   */
+  public List<Path> getFailures() {
+    return List.copyOf(failures);
+  }
+
+  private void walk(Path source, Set<String> done, BlockingQueue<Path> queue) throws IOException {
+    Files.walkFileTree(source, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+          throws IOException {
+        if (!attributes.isRegularFile()) {
+          return FileVisitResult.CONTINUE;
+        }
+        if (done.contains(source.relativize(file).toString())) {
+          skipped.incrementAndGet();
+          return FileVisitResult.CONTINUE;
+        }
+        put(queue, file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        if (file.equals(source)) {
+          throw e;
+        }
+        fail(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path directory, IOException e) {
+        // the directory couldn't be read to the end
+        if (e != null) {
+          fail(directory);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void work(BlockingQueue<Path> queue, Path source, Path destination, String username,
+      BufferedWriter checkpointWriter) {
+    try {
+      for (Path file = queue.take(); file != END; file = queue.take()) {
+        String relative = source.relativize(file).toString();
+        try {
+          importFile(file, destination.resolve(relative), username);
+        } catch (IOException | RuntimeException e) {
+          fail(file);
+          continue;
+        }
+        try {
+          checkpoint(checkpointWriter, relative);
+        } catch (IOException e) {
+          // the file is imported, only the import run again has to check it
+          checkpointFailure = e;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void fail(Path file) {
+    failed.incrementAndGet();
+    if (failures.size() < MAX_REPORTED_FAILURES) {
+      failures.add(file);
+    }
+  }
+
+  /**
+   * Give the file its version in the repository, unless it has one already
+   */
+  private void importFile(Path file, Path path, String username) throws IOException {
+    // saves reading the files imported before, but only the commit can tell for sure
+    Path indexFile = new ClientFileResolver(path).getIndexFilePath();
+    if (Files.exists(indexFile) && IndexFileEntry.readEntry(indexFile).getKey() > 0) {
+      skipped.incrementAndGet();
+      return;
+    }
+    // a version file without its index entry is the leftover of a crash, and is replaced
+    CommitEvent event;
+    try {
+      if (link) {
+        String digest = Digests.digest(file, null);
+        event = FileSystemEnvironmentResolver.linkVersion(file, path, username, digest,
+            REPLACE_EXISTING, CommitOption.FIRST_VERSION_ONLY);
+      } else {
+        try (InputStream in = Files.newInputStream(file)) {
+          event = FileSystemEnvironmentResolver.createVersion(in, path, username,
+              Files.size(file), REPLACE_EXISTING, CommitOption.FIRST_VERSION_ONLY);
+        }
+      }
+    } catch (FileAlreadyExistsException e) {
+      skipped.incrementAndGet();
+      return;
+    }
+    if (event == null) {
+      throw new IOException("Couldn't create the directory of " + path);
+    }
+    files.incrementAndGet();
+    bytes.addAndGet(event.size());
+  }
+
+  private static Set<String> readCheckpoint(Path checkpoint) throws IOException {
+    Set<String> done = new HashSet<>();
+    if (checkpoint != null && Files.exists(checkpoint)) {
+      try (Stream<String> lines = Files.lines(checkpoint, StandardCharsets.UTF_8)) {
+        lines.filter(line -> !line.isEmpty()).forEach(done::add);
+      }
+    }
+    return done;
+  }
+
+  private void checkpoint(BufferedWriter checkpointWriter, String relative) throws IOException {
+    // once the checkpoint failed, it's left as it is
+    if (checkpointWriter == null || checkpointFailure != null) {
+      return;
+    }
+    // a line lost in a crash only makes the file be checked again
+    synchronized (checkpointWriter) {
+      checkpointWriter.write(relative);
+      checkpointWriter.newLine();
+    }
+  }
+
+  private ScheduledExecutorService startReporter() {
+    if (progressListener == null) {
+      return null;
+    }
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "bulk-import-progress");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long interval = reportInterval.toMillis();
+    reporter.scheduleAtFixedRate(() -> progressListener.accept(getProgress()), interval, interval,
+        TimeUnit.MILLISECONDS);
+    return reporter;
+  }
+
+  /**
+   * Tell every importing thread that the walk is over and wait for them to empty the queue
+   */
+  private void finish(BlockingQueue<Path> queue, List<Thread> workers) {
+    try {
+      for (int i = 0; i < workers.size(); i++) {
+        queue.put(END);
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      workers.forEach(Thread::interrupt);
+      Thread.currentThread().interrupt();
+      throw new RepositoryManagementException("Interrupted while importing", e);
+    }
+  }
+
+  private static void put(BlockingQueue<Path> queue, Path file) {
+    try {
+      queue.put(file);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryManagementException("Interrupted while importing", e);
+    }
+  }
+}
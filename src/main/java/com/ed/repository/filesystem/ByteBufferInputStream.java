@@ -0,0 +1,73 @@
+package com.ed.repository.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the remaining bytes of a buffer, which may be a direct one. The buffer isn't
+ * touched after the stream is closed, since its memory may be released then.
+ */
+class ByteBufferInputStream extends InputStream {
+
+  private final ByteBuffer buffer;
+  private final Runnable onClose;
+  private boolean closed = false;
+
+  /**
+   * @param onClose - run once, when the stream is closed
+   */
+  ByteBufferInputStream(ByteBuffer buffer, Runnable onClose) {
+    super();
+    this.buffer = buffer;
+    this.onClose = onClose;
+  }
+
+  @Override
+  public int read() throws IOException {
+    ensureOpen();
+    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    ensureOpen();
+    if (length == 0) {
+      return 0;
+    }
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    int count = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+
+  @Override
+  public int available() throws IOException {
+    ensureOpen();
+    return buffer.remaining();
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    ensureOpen();
+    int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + count);
+    return count;
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      onClose.run();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
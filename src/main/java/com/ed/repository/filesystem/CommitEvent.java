@@ -0,0 +1,22 @@
+package com.ed.repository.filesystem;
+
+import java.nio.file.Path;
+
+/**
+ * A version that was just written to the repository
+ * 
+ * @param clientPath - the client's path of the file, like dir1/dir2.../filename.ext
+ * @param versionFile - where the version was stored, like dir1/dir2.../filename#EXT/filename-vX.ext
+ * @param indexFile - the index file with the entry of this version
+ * @param version - the version's number
+ * @param username - who uploaded this version
+ * @param size - the number of bytes of the version
+ * @param digest - the SHA-256 of the version's content in hexadecimal
+ * @param timestamp - when the version was committed, in milliseconds since the epoch
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record CommitEvent(Path clientPath, Path versionFile, Path indexFile, int version,
+    String username, long size, String digest, long timestamp) {
+}
@@ -0,0 +1,18 @@
+package com.ed.repository.filesystem;
+
+/**
+ * Notified of every version committed by
+ * {@link FileSystemEnvironmentResolver#createFile(java.io.InputStream, java.nio.file.Path, String, java.nio.file.CopyOption...)}.
+ * <p>
+ * Listeners are called by the uploading thread while it still holds the file's lock, so the
+ * events of a file arrive in version order. They should only hand the event off and return.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+@FunctionalInterface
+public interface CommitListener {
+
+  void committed(CommitEvent event);
+
+}
@@ -0,0 +1,20 @@
+package com.ed.repository.filesystem;
+
+import java.nio.file.CopyOption;
+
+/**
+ * Options of a commit that the {@link java.nio.file.StandardCopyOption}s don't have. They're
+ * checked while the file's lock is held, so no other upload of the file can get in between.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public enum CommitOption implements CopyOption {
+
+  /**
+   * Only commit the first version of a file. If the file has a version already, nothing is
+   * committed and a {@link java.nio.file.FileAlreadyExistsException} is thrown.
+   */
+  FIRST_VERSION_ONLY
+
+}
@@ -0,0 +1,58 @@
+package com.ed.repository.filesystem;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import com.ed.repository.jfr.DownloadEvent;
+
+/**
+ * An InputStream that counts the bytes a client reads of a download, and commits its
+ * {@link DownloadEvent} with them when it's closed. Closing it more than once has no effect.
+ */
+class DownloadInputStream extends FilterInputStream {
+
+  private final DownloadEvent event;
+  private long bytes = 0;
+  private boolean closed = false;
+
+  /**
+   * @param event - an event that already began
+   */
+  DownloadInputStream(InputStream in, DownloadEvent event) {
+    super(in);
+    this.event = event;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b != -1) {
+      bytes++;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int offset, int length) throws IOException {
+    int n = super.read(b, offset, length);
+    if (n > 0) {
+      bytes += n;
+    }
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (!closed) {
+        closed = true;
+        if (event.shouldCommit()) {
+          event.bytes = bytes;
+          event.commit();
+        }
+      }
+    }
+  }
+}
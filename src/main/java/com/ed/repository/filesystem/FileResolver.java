@@ -6,6 +6,7 @@ import java.nio.file.Path;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import com.ed.repository.exceptions.TransformPathException;
+import com.ed.repository.sharding.StorageRouter;
 
 public class FileResolver {
 
@@ -34,6 +35,7 @@ public class FileResolver {
   }
 
   private void resolveClient(Path path) throws IOException {
+    path = StorageRouter.getDefault().route(path);
     Matcher matcher = PathParser.getClientToRepoMatcher(path);
     boolean matches = matcher.matches();
 
@@ -46,6 +48,7 @@ public class FileResolver {
   }
 
   private void resolveRepo(Path path) {
+    path = StorageRouter.getDefault().route(path);
     Matcher matcher = PathParser.getRepoToClientMatcher(path);
     boolean matches = matcher.matches();
 
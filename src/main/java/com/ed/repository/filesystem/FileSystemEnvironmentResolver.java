@@ -1,42 +1,408 @@
 package com.ed.repository.filesystem;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 import com.ed.repository.exceptions.FileVersionException;
+import com.ed.repository.integrity.Digests;
+import com.ed.repository.jfr.DirectoryHitEvent;
+import com.ed.repository.replication.MirrorReplicator;
+import com.ed.repository.sharding.StorageRouter;
+import com.ed.repository.tiering.ColdTier;
+import com.ed.repository.utils.AppUtils;
 
 public class FileSystemEnvironmentResolver {
 
   final static Charset ENCODING = StandardCharsets.UTF_8;
 
+  private static final List<CommitListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+  // serializes the uploads to the same file, so that two of them can't take the same version
+  private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+  static {
+    for (int i = 0; i < LOCKS.length; i++) {
+      LOCKS[i] = new ReentrantLock();
+    }
+  }
+
   public static boolean createFile(final InputStream in, Path path, final String username,
       CopyOption... options) throws IOException {
+    return createFile(in, path, username, -1, options);
+  }
+
+  /**
+   * Like {@link #createFile(InputStream, Path, String, CopyOption...)}, for a content whose length
+   * is known in advance. The new file is allocated at once, instead of growing while it's written.
+   * 
+   * @param contentLength - the number of bytes of {@code in}, or -1 if unknown
+   */
+  public static boolean createFile(final InputStream in, Path path, final String username,
+      long contentLength, CopyOption... options) throws IOException {
+    CommitEvent event = createVersion(in, path, username, contentLength, options);
+    return event != null && event.size() > 0;
+  }
+
+  /**
+   * Like {@link #createFile(InputStream, Path, String, long, CopyOption...)}, but tells what was
+   * written
+   * 
+   * @return the version committed, or null if the repository's directory couldn't be created
+   */
+  static CommitEvent createVersion(final InputStream in, Path path, final String username,
+      long contentLength, CopyOption... options) throws IOException {
+    // the user's directory can't switch storage roots while it's being written
+    Lock userLock = StorageRouter.getDefault().lockFor(path).readLock();
+    userLock.lock();
+    try {
+      return createRoutedVersion(in, path, username, contentLength, options);
+    } finally {
+      userLock.unlock();
+    }
+  }
+
+  private static CommitEvent createRoutedVersion(final InputStream in, Path path,
+      final String username, long contentLength, CopyOption... options) throws IOException {
     ClientFileResolver fileResolver = new ClientFileResolver(path);
 
     // create repository's directory (if doesn't exist)
     Path versionsFolder = fileResolver.getRepositoryDirectoryPath();
     boolean wasDirectoryCreated = createDirectory(versionsFolder);
     if (!wasDirectoryCreated) {
-      return false;
+      return null;
     }
-    // write new entry in index file
-    Path indexFilePath = fileResolver.getIndexFilePath();
-    createFileLazily(indexFilePath);
 
-    // the next version is 1 up from the latest one in the archive
-    int latestVersion = fileResolver.getLatestVersion();
-    int nextVersion = ++latestVersion;
-    IndexFileEntry.writeEntry(indexFilePath, nextVersion, username);
+    // write the content to a temporary file, hashing it on the way. This doesn't need the lock,
+    // so uploads of the same file only wait for each other to take a version
+    MessageDigest messageDigest = Digests.newDigest();
+    Path temporary = VersionWriter.write(in, versionsFolder, contentLength, messageDigest);
+    String digest = Digests.toHex(messageDigest.digest());
+    return commitVersion(fileResolver, path, username, temporary, digest, options);
+  }
+
+  /**
+   * Create a new version of a file with the content of a version that's already stored, without
+   * receiving it again. The content is hard linked when possible.
+   * 
+   * @param existing - the version file whose content is reused
+   * @param path - the file's path of the client
+   * @param username - who uploaded this version
+   * @param digest - the SHA-256 of {@code existing}, as recorded when it was uploaded
+   * @param options - some copy options
+   * @return the version committed, or null if the repository's directory couldn't be created
+   * @throws NoSuchFileException if {@code existing} isn't there anymore
+   * @throws IOException if an I/O error occurs
+   */
+  public static CommitEvent linkVersion(Path existing, Path path, final String username,
+      String digest, CopyOption... options) throws IOException {
+    Lock userLock = StorageRouter.getDefault().lockFor(path).readLock();
+    userLock.lock();
+    try {
+      ClientFileResolver fileResolver = new ClientFileResolver(path);
+      Path versionsFolder = fileResolver.getRepositoryDirectoryPath();
+      if (!createDirectory(versionsFolder)) {
+        return null;
+      }
+      Path temporary = VersionWriter.link(existing, versionsFolder);
+      return commitVersion(fileResolver, path, username, temporary, digest, options);
+    } finally {
+      userLock.unlock();
+    }
+  }
+
+  /**
+   * Give the next version of a file to a complete temporary file of its versions directory
+   */
+  private static CommitEvent commitVersion(ClientFileResolver fileResolver, Path path,
+      String username, Path temporary, String digest, CopyOption... options) throws IOException {
+    ReentrantLock lock = lockFor(fileResolver.getRepositoryDirectoryPath());
+    lock.lock();
+    try {
+      Path indexFilePath = fileResolver.getIndexFilePath();
+      createFileLazily(indexFilePath);
+
+      // the next version is 1 up from the latest one in the archive
+      IndexFileEntry latestEntry = IndexFileEntry.readEntry(indexFilePath);
+      if (latestEntry.getKey() > 0
+          && Arrays.asList(options).contains(CommitOption.FIRST_VERSION_ONLY)) {
+        throw new FileAlreadyExistsException(indexFilePath.toString());
+      }
+      int nextVersion = latestEntry.getKey() + 1;
+      // never before the previous version, even if the clock went back
+      long timestamp = Math.max(System.currentTimeMillis(), latestEntry.getTimestamp());
+
+      // give the content its version's name, at once
+      Path target = fileResolver.getRepositoryFilePath(nextVersion);
+      if (Files.exists(target) && !Arrays.asList(options).contains(REPLACE_EXISTING)) {
+        throw new FileAlreadyExistsException(target.toString());
+      }
+      long size = Files.size(temporary);
+      Files.move(temporary, target, ATOMIC_MOVE, REPLACE_EXISTING);
+
+      // write new entry in index file, now that its content is complete
+      IndexFileEntry.writeEntry(indexFilePath,
+          new IndexFileEntry(nextVersion, username, digest, timestamp));
+
+      CommitEvent event = new CommitEvent(path, target, indexFilePath, nextVersion, username, size,
+          digest, timestamp);
+      for (CommitListener listener : LISTENERS) {
+        listener.committed(event);
+      }
+      return event;
+    } finally {
+      lock.unlock();
+      Files.deleteIfExists(temporary); // only still there if the version wasn't created
+    }
+  }
+
+  public static void addCommitListener(CommitListener listener) {
+    LISTENERS.add(listener);
+  }
+
+  public static void removeCommitListener(CommitListener listener) {
+    LISTENERS.remove(listener);
+  }
+
+  /**
+   * The lock that guards the versions of the file in this directory
+   * 
+   * @param versionsFolder - a directory in format dir1/dir2.../filename#extension/
+   */
+  static ReentrantLock lockFor(Path versionsFolder) {
+    return LOCKS[stripeOf(versionsFolder)];
+  }
+
+  private static int stripeOf(Path versionsFolder) {
+    int hash = versionsFolder.toAbsolutePath().normalize().hashCode();
+    return Math.floorMod(hash ^ (hash >>> 16), LOCKS.length);
+  }
+
+  /**
+   * Copy a directory, or a single file, with the whole history of every file in it. The versions
+   * are immutable, so they are hard linked instead of copied whenever both sides are in the same
+   * filesystem, and the copy takes time in the number of files rather than in their size. A file
+   * copied to another name has its versions and index file renamed after the destination.
+   * <p>
+   * The versions directories of both sides are locked meanwhile, so no version is committed to
+   * them, while uploads to other files go on. With a {@link StorageRouter}, both user directories
+   * are also kept in their storage roots. If the copy fails, whatever was already copied is
+   * removed.
+   * <p>
+   * Every version copied is announced to the {@link CommitListener}s, as a commit of its original
+   * uploader, once the whole copy is done.
+   * 
+   * @param source - the client's path of a directory or of a file
+   * @param destination - the client's path of the copy
+   * @return how many files were copied
+   * @throws FileAlreadyExistsException if a file to be copied already exists in the destination.
+   *         Nothing is copied in that case
+   * @throws NoSuchFileException if there's nothing in {@code source}
+   * @throws IOException if an I/O error occurs
+   */
+  public static int copyDirectory(Path source, Path destination) throws IOException {
+    StorageRouter router = StorageRouter.getDefault();
+    // only a routed user directory has a lock of its own, that keeps it in its storage root
+    TreeMap<String, Lock> userLocks = new TreeMap<>();
+    for (Path path : List.of(source, destination)) {
+      String user = router.userOf(path);
+      if (user != null) {
+        userLocks.putIfAbsent(user, router.lockFor(path).readLock());
+      }
+    }
+    // always by user, so that two opposite copies can't wait for each other
+    List<Lock> locks = new ArrayList<>(userLocks.values());
+    locks.forEach(Lock::lock);
+    try {
+      Path sourceRoot = router.route(source);
+      Path destinationRoot = router.route(destination);
+      Map<Path, Path> copies = new LinkedHashMap<>();
+      Path clientFile = null;
+      if (Files.isDirectory(sourceRoot)) {
+        for (Path directory : findVersionDirectories(sourceRoot)) {
+          copies.put(directory, destinationRoot.resolve(sourceRoot.relativize(directory).toString()));
+        }
+      } else {
+        Path directory = new ClientFileResolver(sourceRoot).getRepositoryDirectoryPath();
+        if (!Files.isDirectory(directory)) {
+          throw new NoSuchFileException(source.toString());
+        }
+        copies.put(directory, new ClientFileResolver(destinationRoot).getRepositoryDirectoryPath());
+        clientFile = destinationRoot;
+      }
+      // every versions directory of both sides, always in the same order
+      TreeMap<Integer, ReentrantLock> directoryLocks = new TreeMap<>();
+      for (Map.Entry<Path, Path> copy : copies.entrySet()) {
+        for (Path directory : List.of(copy.getKey(), copy.getValue())) {
+          int stripe = stripeOf(directory);
+          directoryLocks.putIfAbsent(stripe, LOCKS[stripe]);
+        }
+      }
+      locks.addAll(directoryLocks.values());
+      directoryLocks.values().forEach(Lock::lock);
+
+      // check everything first, so that a copy is never left half done by a conflict
+      for (Path target : copies.values()) {
+        if (Files.exists(target)) {
+          throw new FileAlreadyExistsException(target.toString());
+        }
+      }
+      // each versions directory copied, with the topmost directory its copy created
+      List<Map.Entry<Path, Path>> created = new ArrayList<>();
+      List<CommitEvent> events = new ArrayList<>();
+      try {
+        for (Map.Entry<Path, Path> copy : copies.entrySet()) {
+          created.add(Map.entry(copy.getValue(), firstMissing(copy.getValue())));
+          events.addAll(copyVersions(copy.getKey(), copy.getValue(), clientFile));
+        }
+      } catch (IOException | RuntimeException e) {
+        // the last one first, so that the parents it created are empty again
+        for (int i = created.size() - 1; i >= 0; i--) {
+          remove(created.get(i).getKey(), created.get(i).getValue());
+        }
+        throw e;
+      }
+      for (CommitEvent event : events) {
+        for (CommitListener listener : LISTENERS) {
+          listener.committed(event);
+        }
+      }
+      return copies.size();
+    } finally {
+      for (int i = locks.size() - 1; i >= 0; i--) {
+        locks.get(i).unlock();
+      }
+    }
+  }
 
-    // write content in repository's file
-    Path target = fileResolver.getRepositoryFilePath(nextVersion);
-    boolean suceess = Files.copy(in, target, options) > 0;
-    return suceess;
+  /**
+   * Delete a versions directory that was created, and its parents up to {@code firstCreated} that
+   * nothing else was written to meanwhile
+   */
+  private static void remove(Path directory, Path firstCreated) throws IOException {
+    if (Files.exists(directory)) {
+      AppUtils.deleteDirectory(directory);
+    }
+    Path absolute = firstCreated.toAbsolutePath();
+    for (Path parent = directory.toAbsolutePath().getParent();
+        parent != null && parent.startsWith(absolute); parent = parent.getParent()) {
+      try {
+        Files.deleteIfExists(parent);
+      } catch (DirectoryNotEmptyException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * The topmost directory that creating {@code directory} would create
+   */
+  private static Path firstMissing(Path directory) {
+    Path missing = directory.toAbsolutePath();
+    while (missing.getParent() != null && !Files.exists(missing.getParent())) {
+      missing = missing.getParent();
+    }
+    return missing;
+  }
+
+  /**
+   * Copy the versions of a file, while holding the locks of both directories
+   * 
+   * @param clientFile - the path of the copy, in client format, when a single file is copied. The
+   *        versions are named after it. When null, they keep their names
+   * @return the versions copied
+   */
+  private static List<CommitEvent> copyVersions(Path sourceDirectory, Path targetDirectory,
+      Path clientFile) throws IOException {
+    Path sourceIndex = new RepositoryFileResolver(sourceDirectory).getIndexFilePath();
+    List<IndexFileEntry> entries = IndexFileEntry.readEntries(sourceIndex);
+    Map<Integer, Path> versionFiles = listVersions(sourceDirectory);
+    Files.createDirectories(targetDirectory);
+
+    List<CommitEvent> events = new ArrayList<>();
+    Path targetIndex = clientFile != null ? new ClientFileResolver(clientFile).getIndexFilePath()
+        : targetDirectory.resolve(sourceIndex.getFileName().toString());
+    for (IndexFileEntry entry : entries) {
+      Path versionFile = versionFiles.get(entry.getKey());
+      if (versionFile == null) {
+        continue; // the index is written after the version, so it may not be there yet
+      }
+      String name = versionFile.getFileName().toString();
+      if (ColdTier.isCompressed(versionFile)) {
+        name = name.substring(0, name.length() - ColdTier.COMPRESSED_SUFFIX.length());
+      }
+      Path target = clientFile != null
+          ? targetDirectory.resolve(
+              PathParser.clientToRepoPath(clientFile, entry.getKey()).getFileName().toString())
+          : targetDirectory.resolve(name);
+      if (ColdTier.isCompressed(versionFile)) {
+        // the cold tier's copy is decompressed, the destination may not be in the tier
+        try (InputStream in = ColdTier.openStored(versionFile)) {
+          Files.copy(in, target);
+        }
+        // versions that the index doesn't date are dated by their modification time
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(versionFile));
+      } else {
+        link(versionFile, target);
+      }
+      // the copy has the history of the source, so its versions keep their commit times
+      long committed = entry.getTimestamp() > 0 ? entry.getTimestamp()
+          : Files.getLastModifiedTime(target).toMillis();
+      Path clientPath = StorageRouter.getDefault().toLogical(PathParser.repoToClientPath(target));
+      events.add(new CommitEvent(clientPath, target, targetIndex, entry.getKey(),
+          entry.getValue(), Files.size(target), entry.getDigest(), committed));
+    }
+
+    // the index last, so that it never names a version that isn't there
+    List<String> lines = new ArrayList<>();
+    for (IndexFileEntry entry : entries) {
+      if (versionFiles.containsKey(entry.getKey())) {
+        lines.add(IndexFileEntry.format(entry));
+      }
+    }
+    Path temporary = Files.createTempFile(targetDirectory, ".index-", ".tmp");
+    try {
+      Files.write(temporary, lines, ENCODING);
+      Files.move(temporary, targetIndex, ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return events;
+  }
+
+  private static void link(Path existing, Path link) throws IOException {
+    try {
+      Files.createLink(link, existing);
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      if (e instanceof FileAlreadyExistsException) {
+        throw (FileAlreadyExistsException) e;
+      }
+      // another filesystem, or one without hard links
+      Files.copy(existing, link, COPY_ATTRIBUTES);
+    }
   }
 
   /**
@@ -71,11 +437,128 @@ public class FileSystemEnvironmentResolver {
       String errorMsg = "Version %s bigger than the latest version %s";
       throw new FileVersionException(String.format(errorMsg, version, latestVersion));
     }
-    Path packContent = fileResolver.getRepositoryFilePath(version);
+    return packOf(fileResolver.getRepositoryFilePath(version), version);
+  }
+
+  /**
+   * A version of a file that is known to exist, wherever it's stored now
+   * 
+   * @param packContent - where the version is written in the repository
+   * @param version - The version of the file
+   */
+  static Pack packOf(Path packContent, int version) throws IOException {
+    // an old version may have been moved to the cold tier
+    ColdTier tier = ColdTier.getDefault();
+    if (tier != null) {
+      Path stored = tier.locate(packContent);
+      if (!stored.equals(packContent)) {
+        return Pack.createPack(packContent, stored);
+      }
+    }
+    // a mirror that already has this version may serve it
+    MirrorReplicator replicator = MirrorReplicator.getDefault();
+    if (replicator != null) {
+      return Pack.createPack(packContent, replicator.locate(packContent, version));
+    }
     Pack pack = Pack.createPack(packContent);
     return pack;
   }
 
+  /**
+   * Get the version of a file that was the latest at {@code timestamp}. The version is found with
+   * a binary search over the file's history, whose commit times only go up.
+   * <p>
+   * Versions committed before the index files recorded the time are dated by their file's
+   * modification time.
+   * 
+   * @param path - A representation of a file in the server's repository
+   * @param timestamp - in milliseconds since the epoch
+   * @return the newest version committed at or before {@code timestamp}, or null if the file had
+   *         no version yet
+   * @throws IOException if an I/O error occurs
+   */
+  public static Pack getFileAsOf(Path path, long timestamp) throws IOException {
+    Path indexFile = new RepositoryFileResolver(path).getIndexFilePath();
+    List<IndexFileEntry> entries = IndexFileEntry.readEntries(indexFile);
+    Map<Integer, Path> versionFiles = null;
+    int low = 0;
+    int high = entries.size() - 1;
+    IndexFileEntry found = null;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      IndexFileEntry entry = entries.get(middle);
+      long committed = entry.getTimestamp();
+      if (committed <= 0) {
+        if (versionFiles == null) {
+          versionFiles = listVersions(path);
+        }
+        Path versionFile = versionFiles.get(entry.getKey());
+        committed = versionFile == null ? 0 : Files.getLastModifiedTime(versionFile).toMillis();
+      }
+      if (committed <= timestamp) {
+        found = entry;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return found == null ? null : getFile(path, found.getKey());
+  }
+
+  /**
+   * Find every directory that represents a file, in format dir1/dir2.../filename#extension/
+   * 
+   * @param root - where to search
+   * @return the directories found, or an empty list if {@code root} isn't a directory
+   * @throws IOException if an I/O error occurs
+   */
+  public static List<Path> findVersionDirectories(Path root) throws IOException {
+    List<Path> versionDirectories = new ArrayList<>();
+    if (Files.isDirectory(root)) {
+      Files.walkFileTree(root, new SimpleFileVisitor<>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          if (dir.getFileName() != null && PathParser.isRepoFormat(dir.getFileName())) {
+            versionDirectories.add(dir);
+            DirectoryHitEvent event = new DirectoryHitEvent();
+            if (event.shouldCommit()) {
+              event.directory = dir.toString();
+              event.commit();
+            }
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    return versionDirectories;
+  }
+
+  /**
+   * The version files stored in a directory in format dir1/dir2.../filename#extension/
+   * 
+   * @param versionsDirectory - the directory of a file
+   * @return each version's file by version number, in order. Versions moved to the cold tier are
+   *         listed with their compressed file, see {@link ColdTier#openStored(Path)}
+   * @throws IOException if an I/O error occurs
+   */
+  public static Map<Integer, Path> listVersions(Path versionsDirectory) throws IOException {
+    Map<Integer, Path> versionFiles = new TreeMap<>();
+    try (Stream<Path> files = Files.list(versionsDirectory)) {
+      files.forEach(file -> {
+        int version = PathParser.getVersionFromFilename(file.getFileName().toString());
+        if (version > 0) {
+          versionFiles.put(version, file);
+        }
+      });
+    }
+    ColdTier tier = ColdTier.getDefault();
+    if (tier != null) {
+      tier.listColdVersions(versionsDirectory).forEach(versionFiles::putIfAbsent);
+    }
+    return versionFiles;
+  }
+
   /**
    * Creates a file only if it doesn't exist. Else, do nothing
    * 
@@ -2,16 +2,32 @@ package com.ed.repository.filesystem;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.CopyOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
+import com.ed.repository.dedup.ContentIndex;
+import com.ed.repository.dedup.UploadChallenge;
+import com.ed.repository.exceptions.QuotaExceededException;
 import com.ed.repository.exceptions.RepositoryManagementException;
+import com.ed.repository.jfr.DirectoryHitEvent;
+import com.ed.repository.jfr.DownloadEvent;
+import com.ed.repository.jfr.GetEvent;
+import com.ed.repository.jfr.PutEvent;
+import com.ed.repository.metadata.MetadataStore;
+import com.ed.repository.sharding.StorageRouter;
+import com.ed.repository.throttling.IoGovernor;
+import com.ed.repository.usage.UsageLedger;
 
 public class FileSystemRepositoryManager extends RepositoryManager {
 
+  // as of the end of time, every file is at its latest version
+  private static final long LATEST = Long.MAX_VALUE;
+
   /**
    * Place a new file in the appropriate location on the server, write to the ".index.txt" file with
    * the uploader's name of this version, and update the file's name version
@@ -21,18 +37,102 @@ public class FileSystemRepositoryManager extends RepositoryManager {
    * @param username - who uploaded this file
    * @param options - some copy options
    * @return true if was successful
-   * @throws RepositoryManagementException
+   * @throws RepositoryManagementException if it fails, or if the user has too many operations
+   *         running
+   * @throws QuotaExceededException if the user's directory is full
    */
   public boolean put(final InputStream in, Path path, final String username, CopyOption... options)
       throws RepositoryManagementException {
-    try {
-      boolean wasCreated = FileSystemEnvironmentResolver.createFile(in, path, username, options);
+    return put(in, path, username, -1, options);
+  }
+
+  /**
+   * Like {@link #put(InputStream, Path, String, CopyOption...)}, when the client tells the size of
+   * the upload in advance. The quota is checked against it before anything is received, and the
+   * version file is allocated at once. An upload that doesn't have that many bytes is rejected,
+   * and no version is created.
+   * 
+   * @param contentLength - the number of bytes of {@code in}, or -1 if unknown
+   */
+  public boolean put(final InputStream in, Path path, final String username, long contentLength,
+      CopyOption... options) throws RepositoryManagementException {
+    UsageLedger ledger = UsageLedger.getDefault();
+    // held until the version is counted, or the upload failed
+    UsageLedger.Reservation reservation =
+        ledger != null ? ledger.reserve(path, contentLength) : null;
+    PutEvent event = new PutEvent();
+    event.begin();
+    try (reservation; IoGovernor.Permit permit = IoGovernor.getDefault().admit(username)) {
+      CommitEvent commit = FileSystemEnvironmentResolver.createVersion(permit.throttle(in), path,
+          username, contentLength, options);
+      if (commit != null && event.shouldCommit()) {
+        event.path = path.toString();
+        event.user = username;
+        event.version = commit.version();
+        event.bytes = commit.size();
+        event.commit();
+      }
+      boolean wasCreated = commit != null && commit.size() > 0;
       return wasCreated;
     } catch (IOException e) {
       throw new RepositoryManagementException(e.getMessage());
     }
   }
 
+  /**
+   * The first step of an upload that may not have to send its content: the client tells the
+   * content's digest and size, and it's challenged to prove it has that content (see
+   * {@link UploadChallenge}). Only the answer tells whether the repository already had it.
+   * 
+   * @param path - the file's path of the client
+   * @param username - who's uploading this file
+   * @param digest - the SHA-256 of the content, in hexadecimal
+   * @param size - the content's size in bytes
+   * @return the challenge to answer with {@link #putByDigest(String, String)}, or null if the
+   *         content has to be sent with {@link #put(InputStream, Path, String, long, CopyOption...)}
+   *         right away
+   * @throws RepositoryManagementException if it fails
+   * @throws QuotaExceededException if the user's directory is full
+   */
+  public UploadChallenge offer(Path path, final String username, String digest, long size)
+      throws RepositoryManagementException {
+    ContentIndex contentIndex = ContentIndex.getDefault();
+    if (contentIndex == null) {
+      return null;
+    }
+    UsageLedger ledger = UsageLedger.getDefault();
+    if (ledger != null) {
+      ledger.checkQuota(path, size);
+    }
+    try {
+      return contentIndex.offer(path, username, digest, size);
+    } catch (IOException e) {
+      throw new RepositoryManagementException(e.getMessage());
+    }
+  }
+
+  /**
+   * The second step of {@link #offer(Path, String, String, long)}: record the new version with the
+   * content the repository already has
+   * 
+   * @param challengeId - the challenge's id
+   * @param proof - the answer to the challenge
+   * @return true if the version was recorded, false if the content has to be sent
+   * @throws RepositoryManagementException if it fails
+   */
+  public boolean putByDigest(String challengeId, String proof)
+      throws RepositoryManagementException {
+    ContentIndex contentIndex = ContentIndex.getDefault();
+    if (contentIndex == null) {
+      return false;
+    }
+    try {
+      return contentIndex.accept(challengeId, proof) != null;
+    } catch (IOException e) {
+      throw new RepositoryManagementException(e.getMessage());
+    }
+  }
+
   /**
    * Returns all subfiles of this {@code file} with the name adapted to go to the user.
    * <p>
@@ -45,24 +145,88 @@ public class FileSystemRepositoryManager extends RepositoryManager {
    */
   public List<Pack> get(Path path) throws RepositoryManagementException {
     try {
-      return get(path, new ArrayList<>());
+      return getRouted(path);
     } catch (IOException e) {
       throw new RepositoryManagementException(e.getMessage());
     }
   }
 
-  private static List<Pack> get(Path path, List<Pack> subfiles) throws IOException {
+  /**
+   * Like {@link #get(Path)}, but each file is returned as it was at {@code timestamp}: the newest
+   * version committed at or before it. Files that had no version yet are left out.
+   * 
+   * @param path - The file's path to search
+   * @param timestamp - in milliseconds since the epoch
+   * @return All subfiles of this {@code file}, as they were at {@code timestamp}
+   * @throws RepositoryManagementException
+   */
+  public List<Pack> get(Path path, long timestamp) throws RepositoryManagementException {
+    try {
+      return getRouted(path, timestamp);
+    } catch (IOException e) {
+      throw new RepositoryManagementException(e.getMessage());
+    }
+  }
+
+  private static List<Pack> getRouted(Path path) throws IOException {
+    return getRouted(path, LATEST);
+  }
+
+  /**
+   * Search {@code path} in the metadata store, when there's one, or else in the storage roots
+   * where it's stored
+   */
+  private static List<Pack> getRouted(Path path, long timestamp) throws IOException {
+    GetEvent event = new GetEvent();
+    event.begin();
+    List<Pack> subfiles = new ArrayList<>();
+    MetadataStore store = MetadataStore.getDefault();
+    if (store != null && !PathParser.isRepoFormat(path)) {
+      Map<Path, Integer> versions = timestamp == LATEST ? store.latestVersions(path)
+          : store.versionsAsOf(path, timestamp);
+      for (Map.Entry<Path, Integer> version : versions.entrySet()) {
+        // named like the path asked for, as the walk of the directories names them
+        Path clientFile = path.isAbsolute() ? version.getKey()
+            : Path.of("").toAbsolutePath().relativize(version.getKey());
+        Path packContent =
+            new ClientFileResolver(clientFile).getRepositoryFilePath(version.getValue());
+        subfiles.add(FileSystemEnvironmentResolver.packOf(packContent, version.getValue()));
+      }
+    } else {
+      for (Path storedPath : StorageRouter.getDefault().resolveAll(path)) {
+        get(storedPath, timestamp, subfiles);
+      }
+    }
+    if (event.shouldCommit()) {
+      event.path = path.toString();
+      event.files = subfiles.size();
+      event.commit();
+    }
+    return subfiles;
+  }
+
+  private static List<Pack> get(Path path, long timestamp, List<Pack> subfiles)
+      throws IOException {
     if (Files.isDirectory(path)) {
       // verify if it's a directory that is a representation of a file in the server's repository
       if (PathParser.isRepoFormat(path)) {
-        Pack pack = FileSystemEnvironmentResolver.getFile(path);
-        subfiles.add(pack);
+        DirectoryHitEvent event = new DirectoryHitEvent();
+        event.begin();
+        Pack pack = timestamp == LATEST ? FileSystemEnvironmentResolver.getFile(path)
+            : FileSystemEnvironmentResolver.getFileAsOf(path, timestamp);
+        if (pack != null) {
+          subfiles.add(pack);
+        }
+        if (event.shouldCommit()) {
+          event.directory = path.toString();
+          event.commit();
+        }
       }
       // it's a common directory
       else {
         List<Path> contentDirectory = Files.list(path).collect(Collectors.toList());
         for (Path subpaths : contentDirectory) {
-          get(subpaths, subfiles);
+          get(subpaths, timestamp, subfiles);
         }
       }
     }
@@ -77,6 +241,108 @@ public class FileSystemRepositoryManager extends RepositoryManager {
     return subfiles;
   }
 
+  /**
+   * Every version of a file, oldest first: who uploaded it, its digest and when it was committed.
+   * It's read from the metadata store when there's one, or else from the file's index.
+   * 
+   * @param clientFile - the client's path of the file
+   * @return the versions of the file, or an empty list if it has none
+   * @throws RepositoryManagementException if the index can't be read
+   */
+  public List<IndexFileEntry> history(Path clientFile) throws RepositoryManagementException {
+    MetadataStore store = MetadataStore.getDefault();
+    if (store != null) {
+      return store.history(clientFile);
+    }
+    try {
+      Path indexFile = new ClientFileResolver(clientFile).getIndexFilePath();
+      return Files.exists(indexFile) ? IndexFileEntry.readEntries(indexFile) : List.of();
+    } catch (IOException e) {
+      throw new RepositoryManagementException(e.getMessage());
+    }
+  }
+
+  /**
+   * Opens the content of a pack for {@code username}, within the limits of that user.
+   * <p>
+   * The download counts as one of the user's running operations until the stream is closed, and
+   * it's recorded with the bytes that were read by then.
+   * 
+   * @param pack - a file returned by {@link #get(Path)}
+   * @param username - who's downloading this file
+   * @return a stream with the content of the pack
+   * @throws RepositoryManagementException if it fails, or if the user has too many operations
+   *         running
+   */
+  public InputStream download(Pack pack, final String username)
+      throws RepositoryManagementException {
+    return download(pack, username, false);
+  }
+
+  /**
+   * Like {@link #download(Pack, String)}, optionally checking the content against the digest
+   * recorded when it was uploaded.
+   * 
+   * @param verify - whether to check the content while it's read
+   * @see Pack#openContent(boolean)
+   */
+  public InputStream download(Pack pack, final String username, boolean verify)
+      throws RepositoryManagementException {
+    DownloadEvent event = new DownloadEvent();
+    event.begin();
+    event.path = String.valueOf(pack.getDestination());
+    event.user = username;
+    event.version = pack.getVersion();
+    IoGovernor.Permit permit = IoGovernor.getDefault().admit(username);
+    try {
+      return new DownloadInputStream(permit.throttle(pack.openContent(verify)), event);
+    } catch (IOException e) {
+      permit.close();
+      throw new RepositoryManagementException(e.getMessage());
+    }
+  }
+
+  /**
+   * Writes all subfiles of this {@code path} to {@code out} as a single archive, each one under
+   * its client side path.
+   * 
+   * @param path - The file's path to search
+   * @param out - where the archive is streamed to. It's finished but not closed
+   * @param format - ZIP or TAR
+   * @throws RepositoryManagementException
+   */
+  public void export(Path path, OutputStream out, ArchiveExporter.Format format)
+      throws RepositoryManagementException {
+    try {
+      List<Pack> packs = getRouted(path);
+      new ArchiveExporter().export(path, packs, out, format);
+    } catch (IOException e) {
+      throw new RepositoryManagementException(e.getMessage());
+    }
+  }
+
+  /**
+   * Copies a directory, or a single file, with the whole history of every file in it. The versions
+   * are hard linked, so no content is rewritten.
+   * 
+   * @param source - the client's path to copy
+   * @param destination - the client's path of the copy. None of its files can exist yet
+   * @return how many files were copied
+   * @throws RepositoryManagementException if it fails
+   * @throws QuotaExceededException if the destination's user directory is full
+   */
+  public int copy(Path source, Path destination) throws RepositoryManagementException {
+    UsageLedger ledger = UsageLedger.getDefault();
+    if (ledger != null) {
+      ledger.checkQuota(destination, -1);
+    }
+    try {
+      return FileSystemEnvironmentResolver.copyDirectory(source, destination);
+    } catch (IOException e) {
+      throw new RepositoryManagementException(e.getMessage());
+    }
+  }
+
 
   @Override
   public RepositoryManager createRepositoryManager() {
@@ -5,17 +5,51 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import com.ed.repository.jfr.IndexFileEvent;
 
+/**
+ * A line of an index file, like "3 : johnny_cash : sha256=9f86d0... : at=1700000000000". The key
+ * is the version, the value is the uploader, and the optional attributes that follow describe the
+ * version's content and when it was committed.
+ */
 public class IndexFileEntry {
 
+  static final String SEPARATOR = " : ";
+  static final String DIGEST_ATTRIBUTE = "sha256=";
+  static final String TIMESTAMP_ATTRIBUTE = "at=";
+
   private final int key;
   private final String value;
+  private final String digest;
+  private final long timestamp;
 
   public IndexFileEntry(int key, String value) {
+    this(key, value, null);
+  }
+
+  /**
+   * @param key - the version
+   * @param value - the uploader
+   * @param digest - the SHA-256 of the version's content in hexadecimal, or null if unknown
+   */
+  public IndexFileEntry(int key, String value, String digest) {
+    this(key, value, digest, 0);
+  }
+
+  /**
+   * @param key - the version
+   * @param value - the uploader
+   * @param digest - the SHA-256 of the version's content in hexadecimal, or null if unknown
+   * @param timestamp - when the version was committed, in epoch millis, or 0 if unknown
+   */
+  public IndexFileEntry(int key, String value, String digest, long timestamp) {
     super();
     this.key = key;
     this.value = value;
+    this.digest = digest;
+    this.timestamp = timestamp;
   }
 
   public int getKey() {
@@ -26,29 +60,126 @@ public class IndexFileEntry {
     return value;
   }
 
+  public String getDigest() {
+    return digest;
+  }
+
+  /**
+   * When the version was committed, in epoch millis, or 0 for versions committed before the
+   * index files recorded it
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
   public static void writeEntry(Path file, int key, String value) throws IOException {
+    writeEntry(file, new IndexFileEntry(key, value));
+  }
+
+  public static void writeEntry(Path file, IndexFileEntry indexEntry) throws IOException {
+    IndexFileEvent event = new IndexFileEvent();
+    event.begin();
     // append to an existing file
     try (OutputStream outputStream = Files.newOutputStream(file, APPEND)) {
-      String entry = String.format("%d%s%s", key, " : ", value);
+      String entry = format(indexEntry);
       byte[] bytes = entry.getBytes(FileSystemEnvironmentResolver.ENCODING);
       outputStream.write(bytes);
       outputStream.write(System.lineSeparator().getBytes()); // change line
     }
+    commit(event, file, true, 1);
   }
 
   public static IndexFileEntry readEntry(Path file) throws IOException {
+    IndexFileEvent event = new IndexFileEvent();
+    event.begin();
     IndexFileEntry entry = new IndexFileEntry(0, null);
     boolean exists = Files.exists(file);
     if (exists) {
       List<String> lines = Files.readAllLines(file);
       if (lines.size() != 0) {
         String lastLine = lines.get(lines.size() - 1);
-        String[] parts = lastLine.split(" : ");
-        int key = Integer.parseInt(parts[0]);
-        String value = parts[1];
-        entry = new IndexFileEntry(key, value);
+        entry = parse(lastLine);
       }
     }
+    commit(event, file, false, entry.getValue() == null ? 0 : 1);
     return entry;
   }
+
+  /**
+   * Read the entry of a specific version
+   * 
+   * @param file - an index file
+   * @param key - the version
+   * @return the entry, or null if there's no such version
+   * @throws IOException if an I/O error occurs
+   */
+  public static IndexFileEntry readEntry(Path file, int key) throws IOException {
+    for (IndexFileEntry entry : readEntries(file)) {
+      if (entry.getKey() == key) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Read all entries of an index file, oldest first
+   * 
+   * @param file - an index file
+   * @return the entries, or an empty list if the file doesn't exist
+   * @throws IOException if an I/O error occurs
+   */
+  public static List<IndexFileEntry> readEntries(Path file) throws IOException {
+    IndexFileEvent event = new IndexFileEvent();
+    event.begin();
+    List<IndexFileEntry> entries = new ArrayList<>();
+    if (Files.exists(file)) {
+      for (String line : Files.readAllLines(file)) {
+        if (!line.isBlank()) {
+          entries.add(parse(line));
+        }
+      }
+    }
+    commit(event, file, false, entries.size());
+    return entries;
+  }
+
+  private static void commit(IndexFileEvent event, Path file, boolean write, int entries) {
+    if (event.shouldCommit()) {
+      event.file = file.toString();
+      event.write = write;
+      event.entries = entries;
+      event.commit();
+    }
+  }
+
+  /**
+   * The line of an index file that holds this entry
+   */
+  public static String format(IndexFileEntry entry) {
+    String line = String.format("%d%s%s", entry.getKey(), SEPARATOR, entry.getValue());
+    if (entry.getDigest() != null) {
+      line += SEPARATOR + DIGEST_ATTRIBUTE + entry.getDigest();
+    }
+    if (entry.getTimestamp() > 0) {
+      line += SEPARATOR + TIMESTAMP_ATTRIBUTE + entry.getTimestamp();
+    }
+    return line;
+  }
+
+  private static IndexFileEntry parse(String line) {
+    String[] parts = line.split(SEPARATOR);
+    int key = Integer.parseInt(parts[0]);
+    String value = parts[1];
+    String digest = null;
+    long timestamp = 0;
+    for (int i = 2; i < parts.length; i++) {
+      if (parts[i].startsWith(DIGEST_ATTRIBUTE)) {
+        digest = parts[i].substring(DIGEST_ATTRIBUTE.length());
+      } else if (parts[i].startsWith(TIMESTAMP_ATTRIBUTE)) {
+        timestamp = Long.parseLong(parts[i].substring(TIMESTAMP_ATTRIBUTE.length()));
+      }
+    }
+    return new IndexFileEntry(key, value, digest, timestamp);
+  }
 }
@@ -1,7 +1,17 @@
 package com.ed.repository.filesystem;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.Objects;
+import com.ed.repository.integrity.VerifyingInputStream;
+import com.ed.repository.sharding.StorageRouter;
+import com.ed.repository.tiering.ColdTier;
 
 /**
  * A class that contains a file and a destination where the contents of the file should be written
@@ -14,6 +24,7 @@ public class Pack {
 
   private Path content;
   private Path destination;
+  private Path versionFile; // the version in the repository, the content may be a copy of it
 
   /**
    * @param content A file
@@ -27,21 +38,180 @@ public class Pack {
 
   /**
    * This class has the filesystem repository point of view. Get's a path in repository's format an
-   * generate a destination equivalent to the client side.
+   * generate a destination equivalent to the client side. If the path is in a storage root, the
+   * destination is under the logical root the client knows.
    * 
    * @param path - a repository's path
    * @return A new Pack containing the same path in two different formats
    * @throws TransformPathException if something's wrong with the argument path
    */
   public static Pack createPack(Path path) {
-    Path unversionedPath = PathParser.repoToClientPath(path);
-    return new Pack(path, unversionedPath);
+    Path unversionedPath = StorageRouter.getDefault().toLogical(PathParser.repoToClientPath(path));
+    Pack pack = new Pack(path, unversionedPath);
+    pack.versionFile = path;
+    return pack;
   }
 
+  /**
+   * Like {@link #createPack(Path)}, but the content is read from another copy of the same file,
+   * like a mirror of the repository or the compressed file in a {@link ColdTier}.
+   * 
+   * @param path - a repository's path
+   * @param content - where the content of {@code path} can be read
+   * @return A new Pack with {@code content} and the destination of {@code path}
+   */
+  public static Pack createPack(Path path, Path content) {
+    Pack pack = createPack(path);
+    pack.content = content;
+    return pack;
+  }
+
+  /**
+   * Where the content was stored when this pack was created. It may be a compressed copy in the
+   * {@link ColdTier}, or not be there anymore.
+   *
+   * @deprecated read the content with {@link #openContent()} and its size with {@link #getSize()}
+   */
+  @Deprecated
   public Path getContent() {
     return content;
   }
 
+  /**
+   * The size of the content as it was uploaded, wherever it's stored now
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public long getSize() throws IOException {
+    try {
+      return ColdTier.originalSize(content);
+    } catch (NoSuchFileException e) {
+      ColdTier tier = ColdTier.getDefault();
+      if (tier == null) {
+        throw e;
+      }
+      return ColdTier.originalSize(tier.locate(versionFile));
+    }
+  }
+
+  /**
+   * When the content was last modified, wherever it's stored now. The {@link ColdTier} keeps it.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public FileTime getLastModifiedTime() throws IOException {
+    try {
+      return Files.getLastModifiedTime(content);
+    } catch (NoSuchFileException e) {
+      ColdTier tier = ColdTier.getDefault();
+      if (tier == null) {
+        throw e;
+      }
+      return Files.getLastModifiedTime(tier.locate(versionFile));
+    }
+  }
+
+  /**
+   * Opens the content of this pack for reading. Small versions are served from the
+   * {@link VersionCache}, the others are read from disk. A version moved to or from the
+   * {@link ColdTier} after this pack was created is still found.
+   * 
+   * @return a stream with the whole content
+   * @throws IOException if an I/O error occurs
+   */
+  public InputStream openContent() throws IOException {
+    ColdTier tier = ColdTier.getDefault();
+    if (tier != null) {
+      tier.recordRead(versionFile);
+    }
+    try {
+      return open(content);
+    } catch (NoSuchFileException e) {
+      if (tier == null) {
+        throw e;
+      }
+      return open(tier.locate(versionFile));
+    }
+  }
+
+  /**
+   * Opens the content as a file channel, to transfer it without copying it through the heap
+   *
+   * @return the channel, or null if the content is compressed and has to be read with
+   *         {@link #openContent()}
+   * @throws IOException if an I/O error occurs
+   */
+  FileChannel openChannel() throws IOException {
+    ColdTier tier = ColdTier.getDefault();
+    Path file = content;
+    if (tier != null) {
+      tier.recordRead(versionFile);
+      if (!Files.exists(file)) {
+        file = tier.locate(versionFile);
+      }
+    }
+    if (ColdTier.isCompressed(file)) {
+      return null;
+    }
+    try {
+      return FileChannel.open(file, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return null; // moved meanwhile, openContent() finds it
+    }
+  }
+
+  private static InputStream open(Path file) throws IOException {
+    if (ColdTier.isCompressed(file)) {
+      return ColdTier.openStored(file);
+    }
+    InputStream cached = VersionCache.getDefault().open(file);
+    if (cached != null) {
+      return cached;
+    }
+    return Files.newInputStream(file);
+  }
+
+  /**
+   * Like {@link #openContent()}, but when {@code verify} is true the content is checked against
+   * the digest recorded at upload once the stream is read to the end.
+   * 
+   * @param verify - whether to check the content
+   * @return a stream with the whole content. Reading its end throws
+   *         {@link com.ed.repository.exceptions.IntegrityException} if the content is corrupted
+   * @throws IOException if an I/O error occurs
+   */
+  public InputStream openContent(boolean verify) throws IOException {
+    InputStream in = openContent();
+    String digest = verify ? getDigest() : null;
+    if (digest == null) {
+      return in;
+    }
+    return new VerifyingInputStream(in, digest, content.toString());
+  }
+
+  /**
+   * The SHA-256 of the content, as recorded in the index file when it was uploaded.
+   * 
+   * @return the digest in hexadecimal, or null if it isn't known
+   * @throws IOException if an I/O error occurs
+   */
+  public String getDigest() throws IOException {
+    int version = getVersion();
+    if (version < 1) {
+      return null;
+    }
+    Path indexFile = new RepositoryFileResolver(versionFile).getIndexFilePath();
+    IndexFileEntry entry = IndexFileEntry.readEntry(indexFile, version);
+    return entry == null ? null : entry.getDigest();
+  }
+
+  /**
+   * The version of the file this pack has, or -1 if its content isn't a version file
+   */
+  public int getVersion() {
+    return PathParser.getVersionFromFilename(versionFile.getFileName().toString());
+  }
+
   public Path getDestination() {
     return destination;
   }
@@ -20,6 +20,10 @@ public class RepositoryFileResolver {
     return resolver.getClientFilePath();
   }
 
+  public Path getIndexFilePath() {
+    return resolver.getIndexFilePath();
+  }
+
   public int getLatestVersion() throws IOException {
     return resolver.getLatestVersion();
   }
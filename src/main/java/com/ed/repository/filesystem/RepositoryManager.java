@@ -1,9 +1,11 @@
 package com.ed.repository.filesystem;
 
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.CopyOption;
 import java.nio.file.Path;
 import java.util.List;
+import com.ed.repository.dedup.UploadChallenge;
 import com.ed.repository.exceptions.RepositoryManagementException;
 
 public abstract class RepositoryManager {
@@ -14,10 +16,49 @@ public abstract class RepositoryManager {
     return RepositoryManager.put(in, clientFile, username, options);
   }
 
+  public boolean put(final InputStream in, Path clientFile, final String username,
+      long contentLength, CopyOption... options) throws RepositoryManagementException {
+    RepositoryManager RepositoryManager = createRepositoryManager();
+    return RepositoryManager.put(in, clientFile, username, contentLength, options);
+  }
+
+  public UploadChallenge offer(Path path, final String username, String digest, long size)
+      throws RepositoryManagementException {
+    RepositoryManager RepositoryManager = createRepositoryManager();
+    return RepositoryManager.offer(path, username, digest, size);
+  }
+
+  public boolean putByDigest(String challengeId, String proof)
+      throws RepositoryManagementException {
+    RepositoryManager RepositoryManager = createRepositoryManager();
+    return RepositoryManager.putByDigest(challengeId, proof);
+  }
+
   public List<Pack> get(Path path) throws RepositoryManagementException {
     RepositoryManager RepositoryManager = createRepositoryManager();
     return RepositoryManager.get(path);
   }
 
+  public List<Pack> get(Path path, long timestamp) throws RepositoryManagementException {
+    RepositoryManager RepositoryManager = createRepositoryManager();
+    return RepositoryManager.get(path, timestamp);
+  }
+
+  public List<IndexFileEntry> history(Path clientFile) throws RepositoryManagementException {
+    RepositoryManager RepositoryManager = createRepositoryManager();
+    return RepositoryManager.history(clientFile);
+  }
+
+  public void export(Path path, OutputStream out, ArchiveExporter.Format format)
+      throws RepositoryManagementException {
+    RepositoryManager RepositoryManager = createRepositoryManager();
+    RepositoryManager.export(path, out, format);
+  }
+
+  public int copy(Path source, Path destination) throws RepositoryManagementException {
+    RepositoryManager RepositoryManager = createRepositoryManager();
+    return RepositoryManager.copy(source, destination);
+  }
+
   public abstract RepositoryManager createRepositoryManager();
 }
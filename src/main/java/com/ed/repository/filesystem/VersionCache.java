@@ -0,0 +1,321 @@
+package com.ed.repository.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-through cache of small version files, kept in direct buffers outside of the heap.
+ * <p>
+ * A version file never changes after it's written, but a versions directory can be removed and
+ * written again, like by a copy that's undone or a rebalance. So an entry is for a file as it is
+ * on disk, known by its file key, size and modification time, and a file written again under the
+ * same name is read again. Entries are never invalidated, only evicted when the byte budget is
+ * exceeded. Eviction picks the least recently used entry, but a new entry
+ * only replaces it if it has been read more often lately (TinyLFU admission), so a scan over many
+ * cold files can't flush the hot ones.
+ * <p>
+ * The memory of an evicted entry is released as soon as the last stream reading it is closed,
+ * instead of waiting for the garbage collector to find the buffer.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class VersionCache {
+
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+  static final int DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+  // releases the memory of a direct buffer, or null if the JDK doesn't allow it
+  private static final MethodHandle CLEANER = findCleaner();
+
+  private static volatile VersionCache defaultCache =
+      new VersionCache(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final FrequencySketch sketch = new FrequencySketch(4096);
+
+  private long usedBytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * @param maxBytes - the total size of the cached files
+   * @param maxEntryBytes - files bigger than this are never cached
+   */
+  public VersionCache(long maxBytes, int maxEntryBytes) {
+    super();
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+  }
+
+  /**
+   * The cache used to deliver the contents of every {@link Pack}
+   */
+  public static VersionCache getDefault() {
+    return defaultCache;
+  }
+
+  public static void setDefault(VersionCache cache) {
+    defaultCache = cache;
+  }
+
+  /**
+   * Open the content of a version file, reading it from disk if it isn't cached. The stream must
+   * be closed, so that the memory of the entry can be released once it's evicted.
+   *
+   * @param file - a path like dir1/dir2.../filename#EXT/filename-vX.ext
+   * @return a stream with the whole file, or null if this file can't be cached, either because
+   *         it's too big or because it isn't a version file
+   * @throws IOException if an I/O error occurs
+   */
+  public InputStream open(Path file) throws IOException {
+    int version = PathParser.getVersionFromFilename(file.getFileName().toString());
+    if (version < 1) {
+      return null;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    Key key = new Key(file.toAbsolutePath().normalize().getParent(), version,
+        attributes.fileKey(), attributes.size(), attributes.lastModifiedTime().toMillis());
+    synchronized (this) {
+      sketch.increment(key);
+      Entry cached = entries.get(key);
+      if (cached != null) {
+        hits++;
+        return stream(cached);
+      }
+      misses++;
+    }
+    long size = attributes.size();
+    if (size > maxEntryBytes || size > maxBytes) {
+      return null;
+    }
+    Entry loaded = new Entry(load(file, (int) size));
+    synchronized (this) {
+      if (!admit(key, loaded)) {
+        loaded.evicted = true; // only this reader has it
+      }
+      return stream(loaded);
+    }
+  }
+
+  /**
+   * Put an entry in the cache, if it's hotter than every entry that would have to be evicted to
+   * make room for it. Nothing is evicted when it isn't.
+   *
+   * @return whether the entry was cached
+   */
+  private boolean admit(Key key, Entry candidate) {
+    if (entries.containsKey(key)) {
+      return false; // loaded concurrently by another reader
+    }
+    int size = candidate.buffer.capacity();
+    int frequency = sketch.frequency(key);
+    List<Key> victims = new ArrayList<>();
+    long freed = 0;
+    Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+    while (usedBytes - freed + size > maxBytes && iterator.hasNext()) {
+      Map.Entry<Key, Entry> victim = iterator.next();
+      if (sketch.frequency(victim.getKey()) >= frequency) {
+        return false; // the candidate isn't hotter than what would be evicted
+      }
+      victims.add(victim.getKey());
+      freed += victim.getValue().buffer.capacity();
+    }
+    for (Key victim : victims) {
+      retire(entries.remove(victim));
+      evictions++;
+    }
+    entries.put(key, candidate);
+    usedBytes += size;
+    return true;
+  }
+
+  private InputStream stream(Entry entry) {
+    entry.readers++;
+    return new ByteBufferInputStream(entry.buffer.asReadOnlyBuffer(), () -> release(entry));
+  }
+
+  private synchronized void release(Entry entry) {
+    entry.readers--;
+    if (entry.evicted && entry.readers == 0) {
+      free(entry.buffer);
+    }
+  }
+
+  /**
+   * Take an entry out of the cache. Its memory is released now, or when its last reader is done
+   */
+  private void retire(Entry entry) {
+    usedBytes -= entry.buffer.capacity();
+    entry.evicted = true;
+    if (entry.readers == 0) {
+      free(entry.buffer);
+    }
+  }
+
+  private static ByteBuffer load(Path file, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      int read = 0;
+      while (buffer.hasRemaining() && read != -1) {
+        read = channel.read(buffer);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized void clear() {
+    entries.values().forEach(this::retire);
+    entries.clear();
+  }
+
+  /**
+   * Release the memory of a direct buffer now. Where the JDK doesn't allow it, the buffer is left
+   * to the garbage collector.
+   */
+  private static void free(ByteBuffer buffer) {
+    if (CLEANER == null) {
+      return;
+    }
+    try {
+      CLEANER.invokeExact(buffer);
+    } catch (Throwable e) {
+      // left to the garbage collector
+    }
+  }
+
+  private static MethodHandle findCleaner() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, "invokeCleaner",
+              MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(field.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A version file as it is on disk
+   * 
+   * @param fileKey - what identifies the file in its filesystem, or null if it has nothing of the
+   *        kind
+   */
+  private record Key(Path directory, int version, Object fileKey, long size, long modified) {
+  }
+
+  /**
+   * A cached file and how many streams are reading it
+   */
+  private static class Entry {
+
+    final ByteBuffer buffer;
+    int readers = 0;
+    boolean evicted = false;
+
+    Entry(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters. All counters are halved once enough increments were
+   * made, so the frequencies reflect the recent accesses.
+   */
+  private static class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+
+    private final int[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(int width) {
+      int size = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+      this.table = new int[4][size];
+      this.mask = size - 1;
+      this.sampleSize = 10 * size;
+    }
+
+    void increment(Object key) {
+      int hash = spread(key.hashCode());
+      for (int i = 0; i < table.length; i++) {
+        int index = index(hash, i);
+        if (table[i][index] < MAX_COUNT) {
+          table[i][index]++;
+        }
+      }
+      if (++additions >= sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(Object key) {
+      int hash = spread(key.hashCode());
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < table.length; i++) {
+        frequency = Math.min(frequency, table[i][index(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private void reset() {
+      for (int[] row : table) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] >>>= 1;
+        }
+      }
+      additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+      int h = hash * (0x9E3779B9 + 2 * row + 1);
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+      hash ^= hash >>> 17;
+      hash *= 0xed5ad4bb;
+      return hash ^ (hash >>> 11);
+    }
+  }
+}
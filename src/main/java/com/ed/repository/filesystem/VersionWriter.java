@@ -0,0 +1,203 @@
+package com.ed.repository.filesystem;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import com.ed.repository.sharding.StorageRouter;
+
+/**
+ * Writes the content of an upload to a temporary file of the versions directory, through a file
+ * channel and a direct buffer. The file is only given its -vX name when it's complete (see
+ * {@link FileSystemEnvironmentResolver}), so a half written version never shows up.
+ * <p>
+ * When the client tells the content's length, the file is extended to it before writing, so that
+ * filesystems that allocate on extension can lay it out in one piece, and an upload of any other
+ * length is rejected.
+ * <p>
+ * The temporary files left behind by a crash are removed by {@link #removeLeftovers(Path,
+ * Duration)}, which is meant to run at startup.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class VersionWriter {
+
+  static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+  static final String TEMPORARY_PREFIX = ".upload-";
+  static final String TEMPORARY_SUFFIX = ".tmp";
+  // uploads, index files rewritten by FileSystemEnvironmentResolver and versions promoted by the
+  // ColdTier
+  private static final List<String> TEMPORARY_PREFIXES =
+      List.of(TEMPORARY_PREFIX, ".index-", ".promote-");
+
+  private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+  // direct buffers are expensive to allocate, so each thread keeps its own
+  private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<>();
+
+  /**
+   * The size of the direct buffer used by each uploading thread
+   */
+  public static void setBufferSize(int size) {
+    if (size < 4096) {
+      throw new IllegalArgumentException("The buffer size must be at least 4096 bytes");
+    }
+    bufferSize = size;
+  }
+
+  public static int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Write {@code in} to a new temporary file in {@code directory}, updating {@code digest} with
+   * every byte.
+   * 
+   * @param in - the content of the upload
+   * @param directory - the versions directory the file is going to
+   * @param contentLength - the length announced by the client, or -1 if unknown
+   * @param digest - updated with the content
+   * @return the temporary file, synced to disk. The caller has to move or delete it
+   * @throws IOException if an I/O error occurs, or {@code in} doesn't have
+   *         {@code contentLength} bytes. The temporary file is deleted
+   */
+  static Path write(InputStream in, Path directory, long contentLength, MessageDigest digest)
+      throws IOException {
+    Path temporary = Files.createTempFile(directory, TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+    try (FileChannel out = FileChannel.open(temporary, READ, WRITE)) {
+      if (contentLength > bufferSize) {
+        preallocate(out, contentLength);
+      }
+      ReadableByteChannel source = Channels.newChannel(in);
+      ByteBuffer buffer = buffer();
+      long written = 0;
+      while (source.read(buffer) != -1) {
+        buffer.flip();
+        digest.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+          written += out.write(buffer, written);
+        }
+        buffer.clear();
+        if (contentLength >= 0 && written > contentLength) {
+          throw wrongLength(written, contentLength);
+        }
+      }
+      if (contentLength >= 0 && written != contentLength) {
+        throw wrongLength(written, contentLength);
+      }
+      out.force(false);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+    return temporary;
+  }
+
+  /**
+   * Give the content of a stored version to a new temporary file in {@code directory}. It's a hard
+   * link to {@code existing} if the filesystem allows it, or else a copy.
+   * 
+   * @param existing - a version file
+   * @param directory - the versions directory the file is going to
+   * @return the temporary file. The caller has to move or delete it
+   * @throws IOException if an I/O error occurs
+   */
+  static Path link(Path existing, Path directory) throws IOException {
+    Path temporary =
+        directory.resolve(TEMPORARY_PREFIX + UUID.randomUUID() + TEMPORARY_SUFFIX);
+    try {
+      Files.createLink(temporary, existing);
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      if (e instanceof NoSuchFileException) {
+        throw (NoSuchFileException) e;
+      }
+      // another filesystem, or one without hard links
+      Files.copy(existing, temporary);
+    }
+    return temporary;
+  }
+
+  /**
+   * Whether a file in a versions directory is still being written, to be renamed into place once
+   * it's complete: an upload, an index file being rewritten or a version coming back from the cold
+   * tier. Version files are never temporary, whatever their name.
+   */
+  public static boolean isTemporary(Path file) {
+    String name = file.getFileName().toString();
+    return TEMPORARY_PREFIXES.stream().anyMatch(name::startsWith)
+        && name.endsWith(TEMPORARY_SUFFIX) && PathParser.getVersionFromFilename(name) < 1;
+  }
+
+  /**
+   * Delete the temporary files that were left in the versions directories under {@code root} by
+   * uploads, index rewrites and promotions that never finished, like after a crash.
+   * 
+   * @param root - the repository, like "repo"
+   * @param olderThan - only the files not modified for this long are deleted, so that the ones
+   *        still being written are kept. Zero when nothing is running yet, like at startup
+   * @return the number of files deleted
+   * @throws IOException if an I/O error occurs
+   */
+  public static int removeLeftovers(Path root, Duration olderThan) throws IOException {
+    long limit = System.currentTimeMillis() - olderThan.toMillis();
+    int removed = 0;
+    for (Path storedRoot : StorageRouter.getDefault().resolveAll(root)) {
+      for (Path directory : FileSystemEnvironmentResolver.findVersionDirectories(storedRoot)) {
+        List<Path> leftovers;
+        try (Stream<Path> files = Files.list(directory)) {
+          leftovers = files.filter(VersionWriter::isTemporary).collect(Collectors.toList());
+        }
+        for (Path leftover : leftovers) {
+          try {
+            if (Files.getLastModifiedTime(leftover).toMillis() <= limit
+                && Files.deleteIfExists(leftover)) {
+              removed++;
+            }
+          } catch (NoSuchFileException e) {
+            // it was renamed into place meanwhile
+          }
+        }
+      }
+    }
+    return removed;
+  }
+
+  private static IOException wrongLength(long received, long contentLength) {
+    if (received > contentLength) {
+      return new IOException(
+          String.format("The upload has more than the %d bytes announced", contentLength));
+    }
+    return new IOException(
+        String.format("The upload has %d of the %d bytes announced", received, contentLength));
+  }
+
+  private static void preallocate(FileChannel out, long contentLength) throws IOException {
+    // writing the last byte makes the file as long as the content
+    out.write(ByteBuffer.wrap(new byte[1]), contentLength - 1);
+  }
+
+  private static ByteBuffer buffer() {
+    ByteBuffer buffer = BUFFERS.get();
+    if (buffer == null || buffer.capacity() != bufferSize) {
+      buffer = ByteBuffer.allocateDirect(bufferSize);
+      BUFFERS.set(buffer);
+    }
+    buffer.clear();
+    return buffer;
+  }
+}
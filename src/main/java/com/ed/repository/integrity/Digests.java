@@ -0,0 +1,90 @@
+package com.ed.repository.integrity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import com.ed.repository.throttling.TokenBucket;
+
+/**
+ * The digests that identify the content of the versions
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class Digests {
+
+  public static final String ALGORITHM = "SHA-256";
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform has to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static String toHex(byte[] digest) {
+    return HexFormat.of().formatHex(digest);
+  }
+
+  /**
+   * The digest of a file's content
+   * 
+   * @param file - the file to read
+   * @param limiter - bounds how fast the file is read, or null to read at full speed
+   * @return the digest in hexadecimal
+   * @throws IOException if an I/O error occurs
+   */
+  public static String digest(Path file, TokenBucket limiter) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return digest(in, limiter);
+    }
+  }
+
+  /**
+   * The digest of a stream's content. The stream is read to the end but not closed
+   * 
+   * @param in - the stream to read
+   * @param limiter - bounds how fast the stream is read, or null to read at full speed
+   * @return the digest in hexadecimal
+   * @throws IOException if an I/O error occurs
+   */
+  public static String digest(InputStream in, TokenBucket limiter) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      digest.update(buffer, 0, n);
+      if (limiter != null) {
+        pause(limiter.reserve(n));
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * A strong ETag for a version's content
+   */
+  public static String toETag(String digest) {
+    return "\"sha256-" + digest + "\"";
+  }
+
+  private static void pause(long nanos) throws IOException {
+    if (nanos <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + e.getMessage());
+    }
+  }
+}
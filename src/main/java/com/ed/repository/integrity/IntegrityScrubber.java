@@ -0,0 +1,190 @@
+package com.ed.repository.integrity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+import com.ed.repository.filesystem.IndexFileEntry;
+import com.ed.repository.filesystem.RepositoryFileResolver;
+import com.ed.repository.throttling.TokenBucket;
+import com.ed.repository.tiering.ColdTier;
+
+/**
+ * Re-hashes the stored versions and compares them with the digests recorded when they were
+ * uploaded. The files are read at a bounded rate, so that a scrub can run in the background
+ * without taking the disk from the uploads and downloads.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class IntegrityScrubber implements AutoCloseable {
+
+  /**
+   * A version whose content doesn't match its digest, or that couldn't be read
+   * 
+   * @param file - the version's file, or the index file if it couldn't be read
+   * @param version - the version's number, or 0 for the index file
+   * @param expected - the digest recorded at upload
+   * @param actual - the digest of the current content, or null if the file is missing or
+   *        unreadable
+   * @param error - why the file couldn't be read, or null if it could
+   */
+  public record Corruption(Path file, int version, String expected, String actual,
+      String error) {
+  }
+
+  /**
+   * The outcome of a whole scrub
+   */
+  public record ScrubReport(int versionsChecked, long bytesRead, List<Corruption> corruptions) {
+  }
+
+  private final List<Path> roots;
+  private final TokenBucket limiter;
+  private final Consumer<Corruption> onCorruption;
+  private volatile ScrubReport lastReport = null;
+  private ScheduledExecutorService scheduler = null;
+
+  /**
+   * @param roots - the directories to scrub
+   * @param bytesPerSecond - the most bytes read per second, zero or less for no limit
+   * @param onCorruption - called for every corrupted version found
+   */
+  public IntegrityScrubber(List<Path> roots, long bytesPerSecond,
+      Consumer<Corruption> onCorruption) {
+    super();
+    this.roots = List.copyOf(roots);
+    this.limiter = new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond, Digests.BUFFER_SIZE));
+    this.onCorruption = onCorruption;
+  }
+
+  /**
+   * Change the rate of the scrubs, including one that's running
+   */
+  public void setBytesPerSecond(long bytesPerSecond) {
+    limiter.setRate(bytesPerSecond, Math.max(bytesPerSecond, Digests.BUFFER_SIZE));
+  }
+
+  /**
+   * Scrub every {@code interval}, in a background thread
+   */
+  public synchronized void start(Duration interval) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "integrity-scrubber");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      // anything thrown would cancel the next scrubs
+      try {
+        scrub();
+      } catch (IOException | RuntimeException e) {
+        e.printStackTrace();
+      }
+    }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * The report of the last scrub that finished, or null if none did
+   */
+  public ScrubReport getLastReport() {
+    return lastReport;
+  }
+
+  /**
+   * Scrub all versions once. A version or an index file that can't be read is reported like a
+   * corrupted one, and the scrub goes on.
+   * 
+   * @return what was found
+   * @throws IOException if an I/O error occurs while walking the roots
+   */
+  public ScrubReport scrub() throws IOException {
+    List<Path> versionDirectories = new ArrayList<>();
+    for (Path root : roots) {
+      versionDirectories.addAll(FileSystemEnvironmentResolver.findVersionDirectories(root));
+    }
+
+    int checked = 0;
+    long bytes = 0;
+    List<Corruption> corruptions = new ArrayList<>();
+    for (Path directory : versionDirectories) {
+      Path indexFile = new RepositoryFileResolver(directory).getIndexFilePath();
+      Map<Integer, Path> versionFiles;
+      List<IndexFileEntry> entries;
+      try {
+        versionFiles = FileSystemEnvironmentResolver.listVersions(directory);
+        entries = IndexFileEntry.readEntries(indexFile);
+      } catch (NoSuchFileException e) {
+        continue; // removed since the walk
+      } catch (IOException e) {
+        report(corruptions, new Corruption(indexFile, 0, null, null, e.toString()));
+        continue;
+      }
+      for (IndexFileEntry entry : entries) {
+        if (entry.getDigest() == null) {
+          continue; // uploaded before digests were recorded
+        }
+        checked++;
+        Path file = versionFiles.get(entry.getKey());
+        String actual = null;
+        String error = null;
+        for (int attempt = 0; file != null && attempt < 2; attempt++) {
+          try {
+            long size = Files.size(file);
+            try (InputStream in = ColdTier.openStored(file)) {
+              actual = Digests.digest(in, limiter);
+            }
+            bytes += size;
+            error = null;
+            break;
+          } catch (NoSuchFileException e) {
+            // moved to or from the cold tier meanwhile, it's looked for once more
+            error = e.toString();
+            try {
+              file = FileSystemEnvironmentResolver.listVersions(directory).get(entry.getKey());
+            } catch (IOException listing) {
+              file = null;
+            }
+          } catch (IOException e) {
+            error = e.toString(); // like a cold version that isn't valid gzip
+            break;
+          }
+        }
+        if (!entry.getDigest().equals(actual)) {
+          Path reported = file != null ? file : versionFiles.getOrDefault(entry.getKey(), directory);
+          report(corruptions,
+              new Corruption(reported, entry.getKey(), entry.getDigest(), actual, error));
+        }
+      }
+    }
+    ScrubReport report = new ScrubReport(checked, bytes, List.copyOf(corruptions));
+    this.lastReport = report;
+    return report;
+  }
+
+  private void report(List<Corruption> corruptions, Corruption corruption) {
+    corruptions.add(corruption);
+    onCorruption.accept(corruption);
+  }
+}
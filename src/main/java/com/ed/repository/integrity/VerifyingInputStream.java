@@ -0,0 +1,84 @@
+package com.ed.repository.integrity;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import com.ed.repository.exceptions.IntegrityException;
+
+/**
+ * An InputStream that hashes what it reads and, when it reaches the end, checks it against the
+ * digest recorded when the version was uploaded.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class VerifyingInputStream extends FilterInputStream {
+
+  private final MessageDigest digest = Digests.newDigest();
+  private final String expected;
+  private final String name;
+  private boolean verified = false;
+
+  /**
+   * @param in - the content of a version
+   * @param expected - its digest in hexadecimal
+   * @param name - the version's name, used in the error message
+   */
+  public VerifyingInputStream(InputStream in, String expected, String name) {
+    super(in);
+    this.expected = expected;
+    this.name = name;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b == -1) {
+      verify();
+    } else {
+      digest.update((byte) b);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    int n = super.read(bytes, offset, length);
+    if (n == -1) {
+      verify();
+    } else {
+      digest.update(bytes, offset, n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    // skipped bytes have to be hashed as well
+    byte[] buffer = new byte[(int) Math.min(n, Digests.BUFFER_SIZE)];
+    int read = read(buffer, 0, buffer.length);
+    return Math.max(read, 0);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /**
+   * @throws IntegrityException if the content read doesn't match the expected digest
+   */
+  private void verify() {
+    if (verified) {
+      return;
+    }
+    verified = true;
+    String actual = Digests.toHex(digest.digest());
+    if (!actual.equals(expected)) {
+      throw new IntegrityException(
+          String.format("The content of %s is corrupted: expected %s but was %s", name, expected,
+              actual));
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package com.ed.repository.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.ed.repository.DirectoryHit")
+@Label("Versions Directory Hit")
+@Category({"EdRepository", "Traversal"})
+@Description("A filename#EXT directory found while walking the repository")
+public class DirectoryHitEvent extends jdk.jfr.Event {
+
+  @Label("Directory")
+  public String directory;
+
+}
@@ -0,0 +1,28 @@
+package com.ed.repository.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.ed.repository.Download")
+@Label("Repository Download")
+@Category({"EdRepository", "Operations"})
+@Description("A version of a file read by a client, from its opening to the closing of its stream")
+public class DownloadEvent extends jdk.jfr.Event {
+
+  @Label("Path")
+  public String path;
+
+  @Label("User")
+  public String user;
+
+  @Label("Version")
+  public int version;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+
+}
@@ -0,0 +1,20 @@
+package com.ed.repository.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.ed.repository.Get")
+@Label("Repository Get")
+@Category({"EdRepository", "Operations"})
+@Description("A search for the files under a path")
+public class GetEvent extends jdk.jfr.Event {
+
+  @Label("Path")
+  public String path;
+
+  @Label("Files")
+  public int files;
+
+}
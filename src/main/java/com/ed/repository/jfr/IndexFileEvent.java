@@ -0,0 +1,24 @@
+package com.ed.repository.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.ed.repository.IndexFile")
+@Label("Index File Access")
+@Category({"EdRepository", "Metadata"})
+@Description("A read or a write of an .index.txt file")
+public class IndexFileEvent extends jdk.jfr.Event {
+
+  @Label("File")
+  public String file;
+
+  @Label("Write")
+  public boolean write;
+
+  @Label("Entries")
+  @Description("Entries read, or written")
+  public int entries;
+
+}
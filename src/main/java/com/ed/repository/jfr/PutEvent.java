@@ -0,0 +1,28 @@
+package com.ed.repository.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.ed.repository.Put")
+@Label("Repository Put")
+@Category({"EdRepository", "Operations"})
+@Description("A file uploaded to the repository")
+public class PutEvent extends jdk.jfr.Event {
+
+  @Label("Path")
+  public String path;
+
+  @Label("User")
+  public String user;
+
+  @Label("Version")
+  public int version;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+
+}
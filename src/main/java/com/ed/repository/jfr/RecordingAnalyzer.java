@@ -0,0 +1,148 @@
+package com.ed.repository.jfr;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes a flight recording of the repository: the paths and users that took the most time in
+ * puts, gets and downloads.
+ * <p>
+ * Usage: {@code RecordingAnalyzer <recording.jfr> [top]}
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class RecordingAnalyzer {
+
+  static final int DEFAULT_TOP = 10;
+
+  /**
+   * The time spent by one path or user
+   */
+  public static class Summary {
+
+    private final String key;
+    private long count = 0;
+    private long bytes = 0;
+    private Duration total = Duration.ZERO;
+    private Duration max = Duration.ZERO;
+
+    Summary(String key) {
+      this.key = key;
+    }
+
+    void add(Duration duration, long eventBytes) {
+      count++;
+      bytes += eventBytes;
+      total = total.plus(duration);
+      if (duration.compareTo(max) > 0) {
+        max = duration;
+      }
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public Duration getTotal() {
+      return total;
+    }
+
+    public Duration getMax() {
+      return max;
+    }
+  }
+
+  private final Map<String, Summary> paths = new HashMap<>();
+  private final Map<String, Summary> users = new HashMap<>();
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: RecordingAnalyzer <recording.jfr> [top]");
+      System.exit(1);
+    }
+    int top = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TOP;
+    RecordingAnalyzer analyzer = new RecordingAnalyzer();
+    analyzer.read(Path.of(args[0]));
+    analyzer.print(System.out, top);
+  }
+
+  /**
+   * Add the put, get and download events of a recording to the summaries
+   */
+  public void read(Path recording) throws IOException {
+    try (RecordingFile file = new RecordingFile(recording)) {
+      while (file.hasMoreEvents()) {
+        add(file.readEvent());
+      }
+    }
+  }
+
+  void add(RecordedEvent event) {
+    String name = event.getEventType().getName();
+    if (name.equals("com.ed.repository.Put") || name.equals("com.ed.repository.Download")) {
+      summary(paths, event.getString("path")).add(event.getDuration(), event.getLong("bytes"));
+      summary(users, event.getString("user")).add(event.getDuration(), event.getLong("bytes"));
+    } else if (name.equals("com.ed.repository.Get")) {
+      summary(paths, event.getString("path")).add(event.getDuration(), 0);
+    }
+  }
+
+  /**
+   * The paths, slowest first
+   */
+  public List<Summary> slowestPaths(int top) {
+    return slowest(paths, top);
+  }
+
+  /**
+   * The users who uploaded or downloaded, slowest first
+   */
+  public List<Summary> slowestUsers(int top) {
+    return slowest(users, top);
+  }
+
+  public void print(PrintStream out, int top) {
+    out.println("Slowest paths");
+    print(out, slowestPaths(top));
+    out.println();
+    out.println("Slowest users");
+    print(out, slowestUsers(top));
+  }
+
+  private static void print(PrintStream out, List<Summary> summaries) {
+    out.printf("%10s %8s %10s %10s %14s  %s%n", "total ms", "count", "avg ms", "max ms",
+        "bytes", "key");
+    for (Summary summary : summaries) {
+      double totalMillis = summary.getTotal().toNanos() / 1e6;
+      out.printf("%10.2f %8d %10.2f %10.2f %14d  %s%n", totalMillis, summary.getCount(),
+          totalMillis / summary.getCount(), summary.getMax().toNanos() / 1e6, summary.getBytes(),
+          summary.getKey());
+    }
+  }
+
+  private static Summary summary(Map<String, Summary> summaries, String key) {
+    return summaries.computeIfAbsent(String.valueOf(key), Summary::new);
+  }
+
+  private static List<Summary> slowest(Map<String, Summary> summaries, int top) {
+    return summaries.values().stream()
+        .sorted(Comparator.comparing(Summary::getTotal).reversed()).limit(top).toList();
+  }
+}
@@ -0,0 +1,69 @@
+package com.ed.repository.metadata;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+
+/**
+ * A versioned file, by its client path. The directory is kept apart so that listing a directory is
+ * a lookup on its index.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+@Entity
+@Table(name = "repo_file", indexes = {
+    @Index(name = "uk_repo_file_path", columnList = "path", unique = true),
+    @Index(name = "idx_repo_file_directory", columnList = "directory")})
+public class FileRecord {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "repo_file_seq")
+  @SequenceGenerator(name = "repo_file_seq", allocationSize = 50)
+  private Long id;
+
+  // 768 characters is the longest key an utf8mb4 column can have in MySQL
+  @Column(nullable = false, length = 768)
+  private String path;
+
+  @Column(nullable = false, length = 768)
+  private String directory;
+
+  @Column(nullable = false)
+  private int latestVersion;
+
+  protected FileRecord() {
+    super();
+  }
+
+  FileRecord(String path, String directory) {
+    super();
+    this.path = path;
+    this.directory = directory;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  public int getLatestVersion() {
+    return latestVersion;
+  }
+
+  void setLatestVersion(int latestVersion) {
+    this.latestVersion = latestVersion;
+  }
+}
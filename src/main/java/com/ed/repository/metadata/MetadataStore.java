@@ -0,0 +1,560 @@
+package com.ed.repository.metadata;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.sql.DataSource;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import com.ed.repository.exceptions.RepositoryManagementException;
+import com.ed.repository.filesystem.CommitEvent;
+import com.ed.repository.filesystem.CommitListener;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+import com.ed.repository.filesystem.IndexFileEntry;
+import com.ed.repository.filesystem.PathParser;
+import com.ed.repository.filesystem.RepositoryFileResolver;
+import com.ed.repository.sharding.StorageRouter;
+import com.ed.repository.tiering.ColdTier;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+import jakarta.persistence.PersistenceException;
+
+/**
+ * Keeps the files, versions and uploaders of the repository in a relational database, so that
+ * listing a directory, the history of a file and its latest version are lookups on an index
+ * instead of reads of the filesystem.
+ * <p>
+ * The index files are still the source of truth: the store follows the commits and can be built
+ * again from them at any time. Commits are queued and written by a background thread, many in
+ * one transaction, and the ids are allocated in blocks so that the inserts are sent in JDBC
+ * batches. Every query waits for the commits queued before it to be written, so it sees all the
+ * versions committed before it, but not for longer than {@value #FLUSH_TIMEOUT_MILLIS} ms: if
+ * the database is down, the query fails instead. A commit that the store already has is skipped, so one that races a rebuild is written only
+ * once.
+ * <p>
+ * The tables are created and upgraded by the SQL scripts under {@value #MIGRATIONS}, one folder
+ * per database, and each script applied is recorded in the {@code repo_schema_version} table.
+ * Hibernate only checks that the tables match the entities.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class MetadataStore implements CommitListener, AutoCloseable {
+
+  static final int DEFAULT_BATCH_SIZE = 100;
+  static final long RETRY_DELAY_MILLIS = 1000;
+  static final long FLUSH_TIMEOUT_MILLIS = 30_000;
+  static final String MIGRATIONS = "db/metadata/";
+  // applied in order, never edited once released: a change to the tables is a new script
+  static final List<String> SCRIPTS = List.of("V1__create_tables.sql");
+
+  private static volatile MetadataStore defaultStore = null;
+
+  private final EntityManagerFactory entityManagerFactory;
+  private final int batchSize;
+  private final LinkedBlockingDeque<CommitEvent> queue = new LinkedBlockingDeque<>();
+  // the commits queued so far, and the ones written, that the queries wait for
+  private final AtomicLong enqueued = new AtomicLong();
+  private long written = 0;
+  private long failures = 0;
+  private PersistenceException lastFailure = null;
+  private final Thread writer;
+
+  /**
+   * @param entityManagerFactory - a persistence unit with {@link FileRecord},
+   *        {@link VersionRecord} and {@link UploaderRecord}
+   * @param batchSize - the most commits written in one transaction
+   */
+  public MetadataStore(EntityManagerFactory entityManagerFactory, int batchSize) {
+    super();
+    this.entityManagerFactory = entityManagerFactory;
+    this.batchSize = batchSize;
+    this.writer = new Thread(this::run, "metadata-store");
+    this.writer.setDaemon(true);
+  }
+
+  /**
+   * A store on {@code dataSource}, whose tables are migrated first (see
+   * {@link #migrate(DataSource)}). MySQL and H2 are supported.
+   *
+   * @throws RepositoryManagementException if the tables can't be migrated
+   */
+  public static MetadataStore create(DataSource dataSource) {
+    migrate(dataSource);
+    Configuration configuration = new Configuration()
+        .addAnnotatedClass(FileRecord.class)
+        .addAnnotatedClass(UploaderRecord.class)
+        .addAnnotatedClass(VersionRecord.class)
+        .setProperty(AvailableSettings.HBM2DDL_AUTO, "validate")
+        .setProperty(AvailableSettings.STATEMENT_BATCH_SIZE, String.valueOf(DEFAULT_BATCH_SIZE))
+        .setProperty(AvailableSettings.ORDER_INSERTS, "true")
+        .setProperty(AvailableSettings.ORDER_UPDATES, "true");
+    configuration.getProperties().put(AvailableSettings.DATASOURCE, dataSource);
+    return new MetadataStore(configuration.buildSessionFactory(), DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Apply the scripts that {@code dataSource} doesn't have yet, each in its own transaction where
+   * the database allows it
+   *
+   * @return how many scripts were applied
+   * @throws RepositoryManagementException if a script fails, or the database isn't supported
+   */
+  public static int migrate(DataSource dataSource) {
+    try (Connection connection = dataSource.getConnection()) {
+      String folder = MIGRATIONS + vendor(connection) + "/";
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("create table if not exists repo_schema_version (version integer not null,"
+            + " script varchar(255) not null, appliedAt bigint not null, primary key (version))");
+      }
+      int applied = 0;
+      try (Statement statement = connection.createStatement();
+          ResultSet result = statement.executeQuery("select max(version) from repo_schema_version")) {
+        result.next();
+        applied = result.getInt(1);
+      }
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+        for (int version = applied + 1; version <= SCRIPTS.size(); version++) {
+          String script = SCRIPTS.get(version - 1);
+          try (Statement statement = connection.createStatement()) {
+            for (String sql : statements(folder + script)) {
+              statement.execute(sql);
+            }
+          }
+          try (PreparedStatement insert = connection.prepareStatement(
+              "insert into repo_schema_version (version, script, appliedAt) values (?, ?, ?)")) {
+            insert.setInt(1, version);
+            insert.setString(2, script);
+            insert.setLong(3, System.currentTimeMillis());
+            insert.executeUpdate();
+          }
+          connection.commit();
+        }
+      } catch (SQLException | RuntimeException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+      return SCRIPTS.size() - Math.min(applied, SCRIPTS.size());
+    } catch (SQLException | IOException e) {
+      throw new RepositoryManagementException("Can't migrate the metadata tables", e);
+    }
+  }
+
+  private static String vendor(Connection connection) throws SQLException {
+    String product = connection.getMetaData().getDatabaseProductName().toLowerCase();
+    if (product.contains("mysql")) {
+      return "mysql";
+    } else if (product.contains("h2")) {
+      return "h2";
+    }
+    throw new RepositoryManagementException("The metadata store doesn't support " + product);
+  }
+
+  /**
+   * The statements of a script, which are separated by semicolons. Lines starting with "--" are
+   * comments.
+   */
+  private static List<String> statements(String script) throws IOException {
+    InputStream in = MetadataStore.class.getClassLoader().getResourceAsStream(script);
+    if (in == null) {
+      throw new FileNotFoundException(script);
+    }
+    StringBuilder sql = new StringBuilder();
+    try (in) {
+      for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\\R")) {
+        if (!line.strip().startsWith("--")) {
+          sql.append(line).append('\n');
+        }
+      }
+    }
+    return Arrays.stream(sql.toString().split(";")).map(String::strip)
+        .filter(statement -> !statement.isEmpty()).toList();
+  }
+
+  /**
+   * The store to query, or null if the metadata is only in the index files
+   */
+  public static MetadataStore getDefault() {
+    return defaultStore;
+  }
+
+  public static void setDefault(MetadataStore store) {
+    defaultStore = store;
+  }
+
+  /**
+   * Start following the commits
+   */
+  public void start() {
+    writer.start();
+    FileSystemEnvironmentResolver.addCommitListener(this);
+  }
+
+  /**
+   * Stop following the commits, write what's queued and close the database
+   */
+  @Override
+  public void close() {
+    FileSystemEnvironmentResolver.removeCommitListener(this);
+    writer.interrupt();
+    try {
+      writer.join();
+      flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      entityManagerFactory.close();
+    }
+  }
+
+  @Override
+  public void committed(CommitEvent event) {
+    enqueued.incrementAndGet();
+    queue.add(event);
+  }
+
+  /**
+   * Replace the whole content of the store with the index files under {@code roots}
+   *
+   * @param roots - the directories to import
+   * @throws IOException if an I/O error occurs
+   */
+  public synchronized void rebuild(List<Path> roots) throws IOException {
+    flush();
+    execute(entityManager -> {
+      entityManager.createQuery("delete from VersionRecord").executeUpdate();
+      entityManager.createQuery("delete from FileRecord").executeUpdate();
+      entityManager.createQuery("delete from UploaderRecord").executeUpdate();
+    });
+    List<CommitEvent> batch = new ArrayList<>();
+    for (Path root : roots) {
+      for (Path directory : FileSystemEnvironmentResolver.findVersionDirectories(root)) {
+        Path indexFile = new RepositoryFileResolver(directory).getIndexFilePath();
+        Map<Integer, Path> versionFiles = FileSystemEnvironmentResolver.listVersions(directory);
+        for (IndexFileEntry entry : IndexFileEntry.readEntries(indexFile)) {
+          Path versionFile = versionFiles.get(entry.getKey());
+          if (versionFile == null) {
+            continue;
+          }
+          Path clientPath =
+              StorageRouter.getDefault().toLogical(PathParser.repoToClientPath(versionFile));
+          long timestamp = entry.getTimestamp() > 0 ? entry.getTimestamp()
+              : Files.getLastModifiedTime(versionFile).toMillis();
+          batch.add(new CommitEvent(clientPath, versionFile, indexFile, entry.getKey(),
+              entry.getValue(), ColdTier.originalSize(versionFile), entry.getDigest(), timestamp));
+          if (batch.size() == batchSize) {
+            insert(batch);
+            batch.clear();
+          }
+        }
+      }
+    }
+    insert(batch);
+  }
+
+  /**
+   * The files directly in a client's directory
+   *
+   * @return their client paths, in order
+   */
+  public List<Path> list(Path directory) {
+    flush();
+    return inTransaction(entityManager -> entityManager
+        .createQuery("select f.path from FileRecord f where f.directory = :directory"
+            + " order by f.path", String.class)
+        .setParameter("directory", key(directory))
+        .getResultList()
+        .stream().map(Path::of).toList());
+  }
+
+  /**
+   * Every version of a file, like the lines of its index file
+   *
+   * @param file - the client's path of the file
+   * @return its versions, in order
+   */
+  public List<IndexFileEntry> history(Path file) {
+    flush();
+    return inTransaction(entityManager -> entityManager
+        .createQuery("select v.version, u.name, v.digest, v.committedAt from VersionRecord v"
+            + " join v.uploader u where v.file.path = :path order by v.version", Object[].class)
+        .setParameter("path", key(file))
+        .getResultList()
+        .stream()
+        .map(row -> new IndexFileEntry((Integer) row[0], (String) row[1], (String) row[2],
+            (Long) row[3]))
+        .toList());
+  }
+
+  /**
+   * The latest version of every file under a client's directory, at any depth
+   *
+   * @return the version of each file by client path, in order
+   */
+  public Map<Path, Integer> latestVersions(Path directory) {
+    flush();
+    return versions(inTransaction(entityManager -> entityManager
+        .createQuery("select f.path, f.latestVersion from FileRecord f"
+            + " where f.path like :prefix escape '!' order by f.path", Object[].class)
+        .setParameter("prefix", prefix(directory))
+        .getResultList()));
+  }
+
+  /**
+   * Like {@link #latestVersions(Path)}, as the files were at {@code timestamp}: the newest version
+   * of each one committed at or before it. Files that had no version yet are left out.
+   *
+   * @param timestamp - in milliseconds since the epoch
+   */
+  public Map<Path, Integer> versionsAsOf(Path directory, long timestamp) {
+    flush();
+    return versions(inTransaction(entityManager -> entityManager
+        .createQuery("select f.path, max(v.version) from VersionRecord v join v.file f"
+            + " where f.path like :prefix escape '!' and v.committedAt <= :timestamp"
+            + " group by f.path order by f.path", Object[].class)
+        .setParameter("prefix", prefix(directory))
+        .setParameter("timestamp", timestamp)
+        .getResultList()));
+  }
+
+  private static Map<Path, Integer> versions(List<Object[]> rows) {
+    Map<Path, Integer> versions = new LinkedHashMap<>();
+    for (Object[] row : rows) {
+      versions.put(Path.of((String) row[0]), ((Number) row[1]).intValue());
+    }
+    return versions;
+  }
+
+  /**
+   * The pattern of the paths under a directory, with the wildcards in its name escaped
+   */
+  private static String prefix(Path directory) {
+    Path absolute = directory.toAbsolutePath().normalize();
+    String separator = absolute.getFileSystem().getSeparator();
+    String path = absolute.toString();
+    String escaped = path.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    return escaped + (path.endsWith(separator) ? "" : separator) + "%";
+  }
+
+  /**
+   * The latest version of a file
+   *
+   * @param file - the client's path of the file
+   * @return the version, or 0 if the file doesn't exist
+   */
+  public int getLatestVersion(Path file) {
+    flush();
+    List<Integer> versions = inTransaction(entityManager -> entityManager
+        .createQuery("select f.latestVersion from FileRecord f where f.path = :path",
+            Integer.class)
+        .setParameter("path", key(file))
+        .getResultList());
+    return versions.isEmpty() ? 0 : versions.get(0);
+  }
+
+  /**
+   * The files that {@code uploader} uploaded at least one version of
+   *
+   * @return their client paths, in order
+   */
+  public List<Path> findByUploader(String uploader) {
+    flush();
+    return inTransaction(entityManager -> entityManager
+        .createQuery("select distinct f.path from VersionRecord v join v.file f join v.uploader u"
+            + " where u.name = :name order by f.path", String.class)
+        .setParameter("name", uploader)
+        .getResultList()
+        .stream().map(Path::of).toList());
+  }
+
+  /**
+   * Wait for the commits queued so far to be written, not the ones queued meanwhile. When the
+   * background thread isn't running, they are written now.
+   *
+   * @throws RepositoryManagementException if they can't be written, or aren't written within
+   *         {@value #FLUSH_TIMEOUT_MILLIS} ms
+   */
+  public synchronized void flush() {
+    long target = enqueued.get();
+    if (!writer.isAlive()) {
+      List<CommitEvent> batch = new ArrayList<>();
+      queue.drainTo(batch);
+      try {
+        write(batch);
+      } catch (PersistenceException e) {
+        requeue(batch);
+        throw new RepositoryManagementException("Can't write the metadata", e);
+      }
+      return;
+    }
+    long failuresBefore = failures;
+    long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+    try {
+      while (written < target) {
+        if (failures > failuresBefore) {
+          throw new RepositoryManagementException("Can't write the metadata", lastFailure);
+        }
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          throw new RepositoryManagementException(
+              "The metadata of " + (target - written) + " commits isn't written yet");
+        }
+        wait(left);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryManagementException("Interrupted while writing the metadata", e);
+    }
+  }
+
+  private void run() {
+    List<CommitEvent> batch = new ArrayList<>();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        batch.add(queue.take());
+        queue.drainTo(batch, batchSize - 1);
+        try {
+          write(batch);
+        } catch (PersistenceException e) {
+          requeue(batch);
+          Thread.sleep(RETRY_DELAY_MILLIS);
+        }
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Put a batch back in front, in the same order, to be retried
+   */
+  private void requeue(List<CommitEvent> batch) {
+    ListIterator<CommitEvent> iterator = batch.listIterator(batch.size());
+    while (iterator.hasPrevious()) {
+      queue.addFirst(iterator.previous());
+    }
+  }
+
+  /**
+   * Insert a batch, without holding the lock that the queries wait on meanwhile
+   */
+  private void write(List<CommitEvent> batch) {
+    try {
+      insert(batch);
+    } catch (PersistenceException e) {
+      synchronized (this) {
+        failures++;
+        lastFailure = e;
+        notifyAll();
+      }
+      throw e;
+    }
+    synchronized (this) {
+      written += batch.size();
+      notifyAll();
+    }
+  }
+
+  private void insert(List<CommitEvent> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    execute(entityManager -> {
+      Map<String, FileRecord> files = new HashMap<>();
+      Map<String, UploaderRecord> uploaders = new HashMap<>();
+      for (CommitEvent event : batch) {
+        FileRecord file = files.computeIfAbsent(key(event.clientPath()),
+            path -> findFile(entityManager, path, event.clientPath()));
+        if (event.version() <= file.getLatestVersion()) {
+          continue; // already imported by a rebuild
+        }
+        UploaderRecord uploader =
+            uploaders.computeIfAbsent(event.username(), name -> findUploader(entityManager, name));
+        entityManager.persist(new VersionRecord(file, event.version(), uploader, event.digest(),
+            event.size(), event.timestamp()));
+        file.setLatestVersion(Math.max(file.getLatestVersion(), event.version()));
+      }
+    });
+  }
+
+  private static FileRecord findFile(EntityManager entityManager, String path, Path clientPath) {
+    List<FileRecord> found = entityManager
+        .createQuery("select f from FileRecord f where f.path = :path", FileRecord.class)
+        .setParameter("path", path)
+        .getResultList();
+    if (!found.isEmpty()) {
+      return found.get(0);
+    }
+    Path parent = clientPath.toAbsolutePath().normalize().getParent();
+    FileRecord file = new FileRecord(path, parent == null ? "" : parent.toString());
+    entityManager.persist(file);
+    return file;
+  }
+
+  private static UploaderRecord findUploader(EntityManager entityManager, String name) {
+    List<UploaderRecord> found = entityManager
+        .createQuery("select u from UploaderRecord u where u.name = :name", UploaderRecord.class)
+        .setParameter("name", name)
+        .getResultList();
+    if (!found.isEmpty()) {
+      return found.get(0);
+    }
+    UploaderRecord uploader = new UploaderRecord(name);
+    entityManager.persist(uploader);
+    return uploader;
+  }
+
+  private void execute(Consumer<EntityManager> work) {
+    inTransaction(entityManager -> {
+      work.accept(entityManager);
+      return null;
+    });
+  }
+
+  private <T> T inTransaction(Function<EntityManager, T> work) {
+    EntityManager entityManager = entityManagerFactory.createEntityManager();
+    EntityTransaction transaction = entityManager.getTransaction();
+    try {
+      transaction.begin();
+      T result = work.apply(entityManager);
+      transaction.commit();
+      return result;
+    } catch (RuntimeException e) {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+      throw e;
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private static String key(Path clientPath) {
+    return clientPath.toAbsolutePath().normalize().toString();
+  }
+}
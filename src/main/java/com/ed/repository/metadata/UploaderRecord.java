@@ -0,0 +1,47 @@
+package com.ed.repository.metadata;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+
+/**
+ * Someone who uploaded at least one version
+ *
+ * @author Eduardo Amorim
+ *
+ */
+@Entity
+@Table(name = "repo_uploader",
+    indexes = @Index(name = "uk_repo_uploader_name", columnList = "name", unique = true))
+public class UploaderRecord {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "repo_uploader_seq")
+  @SequenceGenerator(name = "repo_uploader_seq", allocationSize = 50)
+  private Long id;
+
+  @Column(nullable = false)
+  private String name;
+
+  protected UploaderRecord() {
+    super();
+  }
+
+  UploaderRecord(String name) {
+    super();
+    this.name = name;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+}
@@ -0,0 +1,95 @@
+package com.ed.repository.metadata;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+
+/**
+ * A version of a file, like a line of its index file
+ *
+ * @author Eduardo Amorim
+ *
+ */
+@Entity
+@Table(name = "repo_version", indexes = {
+    @Index(name = "uk_repo_version_file", columnList = "file_id, version", unique = true),
+    @Index(name = "idx_repo_version_uploader", columnList = "uploader_id"),
+    @Index(name = "idx_repo_version_committed", columnList = "committedAt")})
+public class VersionRecord {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "repo_version_seq")
+  @SequenceGenerator(name = "repo_version_seq", allocationSize = 50)
+  private Long id;
+
+  @ManyToOne(fetch = FetchType.LAZY, optional = false)
+  @JoinColumn(name = "file_id")
+  private FileRecord file;
+
+  @Column(nullable = false)
+  private int version;
+
+  @ManyToOne(fetch = FetchType.LAZY, optional = false)
+  @JoinColumn(name = "uploader_id")
+  private UploaderRecord uploader;
+
+  @Column(length = 64)
+  private String digest;
+
+  @Column(nullable = false)
+  private long size;
+
+  @Column(nullable = false)
+  private long committedAt;
+
+  protected VersionRecord() {
+    super();
+  }
+
+  VersionRecord(FileRecord file, int version, UploaderRecord uploader, String digest, long size,
+      long committedAt) {
+    super();
+    this.file = file;
+    this.version = version;
+    this.uploader = uploader;
+    this.digest = digest;
+    this.size = size;
+    this.committedAt = committedAt;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public FileRecord getFile() {
+    return file;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public UploaderRecord getUploader() {
+    return uploader;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getCommittedAt() {
+    return committedAt;
+  }
+}
@@ -0,0 +1,464 @@
+package com.ed.repository.replication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ed.repository.filesystem.CommitEvent;
+import com.ed.repository.filesystem.CommitListener;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+import com.ed.repository.filesystem.IndexFileEntry;
+import com.ed.repository.tiering.ColdTier;
+
+/**
+ * Ships every committed version to one or more mirror roots, in the background.
+ * <p>
+ * Each mirror has its own queue and worker thread, so a slow mirror doesn't hold back the others,
+ * and uploads never wait for any of them. A worker takes up to {@code batchSize} versions at once,
+ * copies their files and then rewrites the index of each touched file only once, with only the
+ * entries that the mirror already has.
+ * <p>
+ * When a batch fails, its versions are shipped one by one, so that one version can't hold back
+ * the others. A version that was moved to the {@link ColdTier} meanwhile is read from there. A
+ * version that isn't anywhere anymore, or that still fails after {@value #MAX_ATTEMPTS} attempts,
+ * is given up: it's reported by {@link #getFailures()} and counted in the {@link ReplicationLag}
+ * of its file.
+ * <p>
+ * The replicator knows how far behind each mirror is for the files with versions on their way, so
+ * reads of a version can be served by a mirror that already has it (see
+ * {@link #locate(Path, int)}). Once every mirror has all of a file's versions, it's forgotten.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class MirrorReplicator implements CommitListener, AutoCloseable {
+
+  static final int DEFAULT_BATCH_SIZE = 64;
+  static final long RETRY_DELAY_MILLIS = 1000;
+  static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+  static final int MAX_ATTEMPTS = 10;
+  static final int MAX_REPORTED_FAILURES = 1000;
+
+  /**
+   * A version that a mirror gave up on
+   *
+   * @param mirrorRoot - the mirror that doesn't have it
+   * @param versionFile - the path of the version in the primary
+   * @param version - the version's number
+   * @param reason - the error of the last attempt
+   */
+  public record Failure(Path mirrorRoot, Path versionFile, int version, String reason) {
+  }
+
+  private static volatile MirrorReplicator defaultReplicator = null;
+
+  private final Path sourceRoot;
+  private final List<Mirror> mirrors = new ArrayList<>();
+  private final int batchSize;
+  private final Map<Path, FileState> files = new ConcurrentHashMap<>();
+  private final AtomicInteger nextReader = new AtomicInteger();
+  private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+  private volatile boolean serveReads = false;
+
+  /**
+   * @param sourceRoot - the root of the repository being replicated
+   * @param mirrorRoots - where the copies go. Each one mirrors the structure of {@code sourceRoot}
+   */
+  public MirrorReplicator(Path sourceRoot, List<Path> mirrorRoots) {
+    this(sourceRoot, mirrorRoots, DEFAULT_BATCH_SIZE);
+  }
+
+  public MirrorReplicator(Path sourceRoot, List<Path> mirrorRoots, int batchSize) {
+    super();
+    this.sourceRoot = normalize(sourceRoot);
+    this.batchSize = batchSize;
+    for (int i = 0; i < mirrorRoots.size(); i++) {
+      mirrors.add(new Mirror(i, normalize(mirrorRoots.get(i))));
+    }
+  }
+
+  /**
+   * The replicator whose mirrors may serve reads, or null if there's none
+   */
+  public static MirrorReplicator getDefault() {
+    return defaultReplicator;
+  }
+
+  public static void setDefault(MirrorReplicator replicator) {
+    defaultReplicator = replicator;
+  }
+
+  /**
+   * Start listening to commits and shipping them to the mirrors
+   */
+  public void start() {
+    for (Mirror mirror : mirrors) {
+      mirror.worker.start();
+    }
+    FileSystemEnvironmentResolver.addCommitListener(this);
+  }
+
+  /**
+   * Stop listening to commits. The versions already queued are dropped.
+   */
+  @Override
+  public void close() {
+    FileSystemEnvironmentResolver.removeCommitListener(this);
+    for (Mirror mirror : mirrors) {
+      mirror.worker.interrupt();
+    }
+  }
+
+  /**
+   * Allow {@link #locate(Path, int)} to pick the mirrors
+   */
+  public void setServeReads(boolean serveReads) {
+    this.serveReads = serveReads;
+  }
+
+  @Override
+  public void committed(CommitEvent event) {
+    Path versionFile = normalize(event.versionFile());
+    if (!versionFile.startsWith(sourceRoot)) {
+      return;
+    }
+    files.compute(versionFile.getParent(), (directory, state) -> {
+      FileState committed = state != null ? state : new FileState(mirrors.size(), event.version());
+      committed.commit(event.version(), event.timestamp());
+      return committed;
+    });
+    for (Mirror mirror : mirrors) {
+      mirror.pending.incrementAndGet();
+      mirror.queue.add(event);
+    }
+  }
+
+  /**
+   * Where to read a version from. Mirrors that already have the version take turns, and the
+   * primary is used when none has it.
+   * 
+   * @param versionFile - the path of the version in the primary
+   * @param version - the version's number
+   * @return the path of the version in a mirror, or {@code versionFile}
+   */
+  public Path locate(Path versionFile, int version) {
+    if (!serveReads || mirrors.isEmpty()) {
+      return versionFile;
+    }
+    Path normalized = normalize(versionFile);
+    if (!normalized.startsWith(sourceRoot)) {
+      return versionFile;
+    }
+    FileState state = files.get(normalized.getParent());
+    int first = Math.floorMod(nextReader.getAndIncrement(), mirrors.size());
+    for (int i = 0; i < mirrors.size(); i++) {
+      Mirror mirror = mirrors.get((first + i) % mirrors.size());
+      Path copy = mirror.root.resolve(sourceRoot.relativize(normalized));
+      if (state == null || version < state.firstVersion) {
+        // replicated already, or committed before the replicator started: the copy may be there
+        if (Files.exists(copy)) {
+          return copy;
+        }
+      } else if (state.replicated.get(mirror.index).get() >= version
+          && !state.failed.get(mirror.index).contains(version)) {
+        return copy;
+      }
+    }
+    return versionFile;
+  }
+
+  /**
+   * How far the slowest mirror is behind for a file
+   * 
+   * @param versionsDirectory - a directory like dir1/dir2.../filename#EXT
+   */
+  public ReplicationLag getLag(Path versionsDirectory) {
+    FileState state = files.get(normalize(versionsDirectory));
+    if (state == null) {
+      return new ReplicationLag(0, 0, 0, 0);
+    }
+    return state.lag();
+  }
+
+  /**
+   * The versions that a mirror gave up on, the oldest first. Only the first
+   * {@value #MAX_REPORTED_FAILURES} are kept.
+   */
+  public List<Failure> getFailures() {
+    return List.copyOf(failures);
+  }
+
+  /**
+   * The lag of every file with versions that some mirror doesn't have
+   */
+  public Map<Path, ReplicationLag> getLags() {
+    Map<Path, ReplicationLag> lags = new LinkedHashMap<>();
+    files.forEach((directory, state) -> lags.put(directory, state.lag()));
+    return lags;
+  }
+
+  /**
+   * Wait until every queued version was shipped to every mirror
+   * 
+   * @return false if the timeout elapsed first
+   */
+  public boolean awaitReplication(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (Mirror mirror : mirrors) {
+      while (mirror.pending.get() > 0) {
+        if (System.nanoTime() > deadline) {
+          return false;
+        }
+        Thread.sleep(5);
+      }
+    }
+    return true;
+  }
+
+  private void ship(Mirror mirror, List<CommitEvent> batch) throws IOException {
+    // the versions first, so that a mirror's index never points to a missing file
+    Map<Path, Integer> indexes = new LinkedHashMap<>();
+    for (CommitEvent event : batch) {
+      Path source = normalize(event.versionFile());
+      copy(source, mirror.root.resolve(sourceRoot.relativize(source)));
+      indexes.merge(normalize(event.indexFile()), event.version(), Math::max);
+    }
+    for (Map.Entry<Path, Integer> index : indexes.entrySet()) {
+      Path directory = index.getKey().getParent();
+      FileState state = files.get(directory);
+      Set<Integer> failed = state == null ? Set.of() : state.failed.get(mirror.index);
+      Path target = mirror.root.resolve(sourceRoot.relativize(index.getKey()));
+      writeIndex(index.getKey(), target, index.getValue(), failed);
+      if (state != null) {
+        state.replicate(mirror.index, index.getValue());
+        forgetIfReplicated(directory);
+      }
+    }
+  }
+
+  /**
+   * Give up shipping a version to a mirror
+   */
+  private void fail(Mirror mirror, CommitEvent event, IOException error) {
+    Path versionFile = normalize(event.versionFile());
+    FileState state = files.get(versionFile.getParent());
+    if (state != null) {
+      state.failed.get(mirror.index).add(event.version());
+      state.replicate(mirror.index, event.version());
+    }
+    if (failures.size() < MAX_REPORTED_FAILURES) {
+      failures.add(new Failure(mirror.root, versionFile, event.version(), error.toString()));
+    }
+  }
+
+  private void forgetIfReplicated(Path directory) {
+    files.computeIfPresent(directory, (key, state) -> state.isReplicated() ? null : state);
+  }
+
+  /**
+   * Copy a version, from the cold tier if it was moved there
+   *
+   * @throws NoSuchFileException if the version isn't anywhere
+   */
+  private static void copy(Path source, Path target) throws IOException {
+    Files.createDirectories(target.getParent());
+    Path temporary = target.resolveSibling(target.getFileName() + ".replica");
+    try {
+      Files.copy(source, temporary, StandardCopyOption.REPLACE_EXISTING);
+    } catch (NoSuchFileException e) {
+      ColdTier tier = ColdTier.getDefault();
+      Path stored = tier == null ? source : tier.locate(source);
+      if (!ColdTier.isCompressed(stored)) {
+        if (stored.equals(source)) {
+          throw e;
+        }
+        Files.copy(stored, temporary, StandardCopyOption.REPLACE_EXISTING); // promoted
+      } else {
+        try (InputStream in = ColdTier.openStored(stored)) {
+          Files.copy(in, temporary, StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+    }
+    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void writeIndex(Path source, Path target, int upToVersion, Set<Integer> failed)
+      throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (IndexFileEntry entry : IndexFileEntry.readEntries(source)) {
+      if (entry.getKey() <= upToVersion && !failed.contains(entry.getKey())) {
+        lines.add(IndexFileEntry.format(entry));
+      }
+    }
+    Path temporary = target.resolveSibling(target.getFileName() + ".replica");
+    Files.write(temporary, lines);
+    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static Path normalize(Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+
+  private class Mirror {
+
+    private final int index;
+    private final Path root;
+    private final LinkedBlockingDeque<CommitEvent> queue = new LinkedBlockingDeque<>();
+    private final AtomicLong pending = new AtomicLong();
+    // the failed attempts of the versions being retried
+    private final Map<CommitEvent, Integer> attempts = new HashMap<>();
+    private final Thread worker;
+
+    Mirror(int index, Path root) {
+      this.index = index;
+      this.root = root;
+      this.worker = new Thread(this::run, "mirror-replicator-" + index);
+      this.worker.setDaemon(true);
+    }
+
+    private void run() {
+      List<CommitEvent> batch = new ArrayList<>();
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          batch.add(queue.take());
+          queue.drainTo(batch, batchSize - 1);
+          try {
+            ship(this, batch);
+            done(batch);
+          } catch (IOException e) {
+            List<CommitEvent> retries = shipOneByOne(batch);
+            // put the versions to retry back in front, in the same order, and retry later
+            ListIterator<CommitEvent> iterator = retries.listIterator(retries.size());
+            while (iterator.hasPrevious()) {
+              queue.addFirst(iterator.previous());
+            }
+            if (!retries.isEmpty()) {
+              int attempt = retries.stream().mapToInt(event -> attempts.getOrDefault(event, 1))
+                  .max().orElse(1);
+              Thread.sleep(Math.min(RETRY_DELAY_MILLIS << (attempt - 1), MAX_RETRY_DELAY_MILLIS));
+            }
+          }
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * @return the versions that failed and have to be retried
+     */
+    private List<CommitEvent> shipOneByOne(List<CommitEvent> batch) {
+      List<CommitEvent> retries = new ArrayList<>();
+      // the files with a version to retry: their later versions wait for it
+      Set<Path> blocked = new HashSet<>();
+      for (CommitEvent event : batch) {
+        if (blocked.contains(event.indexFile())) {
+          retries.add(event);
+          continue;
+        }
+        try {
+          ship(this, List.of(event));
+          done(List.of(event));
+        } catch (NoSuchFileException e) {
+          if (Files.exists(normalize(event.versionFile()))) {
+            retry(event, e, retries, blocked); // the mirror's directory is gone
+          } else {
+            give(event, e); // not in the primary, nor in the cold tier
+          }
+        } catch (IOException e) {
+          retry(event, e, retries, blocked);
+        }
+      }
+      return retries;
+    }
+
+    private void retry(CommitEvent event, IOException error, List<CommitEvent> retries,
+        Set<Path> blocked) {
+      if (attempts.merge(event, 1, Integer::sum) >= MAX_ATTEMPTS) {
+        give(event, error);
+      } else {
+        retries.add(event);
+        blocked.add(event.indexFile());
+      }
+    }
+
+    private void give(CommitEvent event, IOException error) {
+      fail(this, event, error);
+      done(List.of(event));
+    }
+
+    private void done(List<CommitEvent> events) {
+      events.forEach(attempts::remove);
+      pending.addAndGet(-events.size());
+    }
+  }
+
+  /**
+   * The replication state of one file
+   */
+  private static class FileState {
+
+    // the first version committed since the file was last fully replicated. The versions before
+    // it are taken as replicated
+    private final int firstVersion;
+    private final AtomicInteger committed = new AtomicInteger();
+    private final List<AtomicInteger> replicated = new ArrayList<>();
+    private final List<Set<Integer>> failed = new ArrayList<>();
+    // when each version not yet in every mirror was committed
+    private final ConcurrentSkipListMap<Integer, Long> pendingSince = new ConcurrentSkipListMap<>();
+
+    FileState(int mirrors, int firstVersion) {
+      this.firstVersion = firstVersion;
+      for (int i = 0; i < mirrors; i++) {
+        replicated.add(new AtomicInteger(firstVersion - 1));
+        failed.add(ConcurrentHashMap.newKeySet());
+      }
+    }
+
+    /**
+     * Whether every mirror has every version committed
+     */
+    boolean isReplicated() {
+      return pendingSince.isEmpty() && failed.stream().allMatch(Set::isEmpty);
+    }
+
+    void commit(int version, long timestamp) {
+      committed.accumulateAndGet(version, Math::max);
+      pendingSince.put(version, timestamp);
+    }
+
+    void replicate(int mirror, int version) {
+      replicated.get(mirror).accumulateAndGet(version, Math::max);
+      int slowest = replicated.stream().mapToInt(AtomicInteger::get).min().orElse(version);
+      pendingSince.headMap(slowest, true).clear();
+    }
+
+    ReplicationLag lag() {
+      int slowest = replicated.stream().mapToInt(AtomicInteger::get).min().orElse(0);
+      Map.Entry<Integer, Long> oldest = pendingSince.firstEntry();
+      long millis = oldest == null ? 0 : System.currentTimeMillis() - oldest.getValue();
+      int failedVersions = failed.stream().mapToInt(Set::size).sum();
+      return new ReplicationLag(committed.get(), slowest, Math.max(millis, 0), failedVersions);
+    }
+  }
+}
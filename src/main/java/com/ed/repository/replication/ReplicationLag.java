@@ -0,0 +1,20 @@
+package com.ed.repository.replication;
+
+/**
+ * How far the mirrors are behind for one file
+ * 
+ * @param committedVersion - the latest version written to the primary
+ * @param replicatedVersion - the latest version that every mirror has
+ * @param millis - how long ago the oldest version missing from a mirror was committed
+ * @param failedVersions - the versions that a mirror gave up on, counted once per mirror
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record ReplicationLag(int committedVersion, int replicatedVersion, long millis,
+    int failedVersions) {
+
+  public int versions() {
+    return committedVersion - replicatedVersion;
+  }
+}
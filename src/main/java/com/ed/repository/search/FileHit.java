@@ -0,0 +1,16 @@
+package com.ed.repository.search;
+
+import java.nio.file.Path;
+
+/**
+ * A file found by name or extension
+ * 
+ * @param clientPath - the client's path of the file
+ * @param versionsDirectory - the directory in format dir1/dir2.../filename#EXT with its versions
+ * @param latestVersion - the latest version known to the index
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record FileHit(Path clientPath, Path versionsDirectory, int latestVersion) {
+}
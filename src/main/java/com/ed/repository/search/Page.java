@@ -0,0 +1,20 @@
+package com.ed.repository.search;
+
+import java.util.List;
+
+/**
+ * A slice of the results of a query
+ * 
+ * @param items - the results in this page
+ * @param offset - the position of the first item among all results
+ * @param total - the number of results of the query
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record Page<T>(List<T> items, int offset, int total) {
+
+  public boolean hasMore() {
+    return offset + items.size() < total;
+  }
+}
@@ -0,0 +1,308 @@
+package com.ed.repository.search;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import com.ed.repository.exceptions.RepositoryManagementException;
+import com.ed.repository.filesystem.CommitEvent;
+import com.ed.repository.filesystem.CommitListener;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+import com.ed.repository.filesystem.IndexFileEntry;
+import com.ed.repository.filesystem.RepositoryFileResolver;
+import com.ed.repository.sharding.StorageRouter;
+
+/**
+ * An in-memory inverted index of the repository, to find files by name and extension, and
+ * versions by uploader and time, without walking the tree.
+ * <p>
+ * The names and extensions come from the filename#EXT directories, the uploaders from the index
+ * files. The index is kept up to date by listening to every commit, and built again from disk, in
+ * parallel, when it's started. All results are sorted by client path, so pages are stable.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class RepositorySearchIndex implements CommitListener, AutoCloseable {
+
+  private static final Comparator<FileDocument> BY_PATH =
+      Comparator.comparing(document -> document.clientPath.toString());
+  private static final Comparator<VersionHit> BY_PATH_AND_VERSION = Comparator
+      .comparing((VersionHit hit) -> hit.clientPath().toString())
+      .thenComparingInt(VersionHit::version);
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<Path, FileDocument> documents = new HashMap<>();
+  private final NavigableMap<String, NavigableSet<FileDocument>> tokens = new TreeMap<>();
+  private final Map<String, NavigableSet<FileDocument>> extensions = new HashMap<>();
+  private final Map<String, NavigableSet<VersionHit>> uploaders = new HashMap<>();
+  private final NavigableMap<Long, List<VersionHit>> timestamps = new TreeMap<>();
+
+  /**
+   * Build the index from the files under {@code roots} and keep it up to date from now on
+   * 
+   * @param roots - the directories to index
+   * @param parallelism - how many threads read the index files
+   * @throws IOException if an I/O error occurs
+   */
+  public void start(List<Path> roots, int parallelism) throws IOException {
+    // listen first, so that no commit is missed while rebuilding
+    FileSystemEnvironmentResolver.addCommitListener(this);
+    rebuild(roots, parallelism);
+  }
+
+  @Override
+  public void close() {
+    FileSystemEnvironmentResolver.removeCommitListener(this);
+  }
+
+  /**
+   * Index again every file under {@code roots}
+   * 
+   * @param roots - the directories to index
+   * @param parallelism - how many threads read the index files
+   * @return the number of files indexed
+   * @throws IOException if an I/O error occurs
+   */
+  public int rebuild(List<Path> roots, int parallelism) throws IOException {
+    List<Path> versionDirectories = new ArrayList<>();
+    for (Path root : roots) {
+      versionDirectories.addAll(FileSystemEnvironmentResolver.findVersionDirectories(root));
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.submit(() -> versionDirectories.parallelStream().forEach(this::index)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryManagementException("Rebuilding the search index was interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new RepositoryManagementException(e.getCause().getMessage());
+    } finally {
+      pool.shutdown();
+    }
+    return versionDirectories.size();
+  }
+
+  private void index(Path versionsDirectory) {
+    try {
+      Map<Integer, Path> versionFiles = FileSystemEnvironmentResolver.listVersions(versionsDirectory);
+      Path indexFile = new RepositoryFileResolver(versionsDirectory).getIndexFilePath();
+      for (IndexFileEntry entry : IndexFileEntry.readEntries(indexFile)) {
+        Path versionFile = versionFiles.get(entry.getKey());
+        long timestamp = entry.getTimestamp();
+        if (timestamp <= 0) {
+          timestamp = versionFile == null ? 0 : Files.getLastModifiedTime(versionFile).toMillis();
+        }
+        add(versionsDirectory, entry.getKey(), entry.getValue(), timestamp);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void committed(CommitEvent event) {
+    add(event.versionFile().getParent(), event.version(), event.username(), event.timestamp());
+  }
+
+  private void add(Path versionsDirectory, int version, String uploader, long timestamp) {
+    Path key = versionsDirectory.toAbsolutePath().normalize();
+    lock.writeLock().lock();
+    try {
+      FileDocument document = documents.get(key);
+      if (document == null) {
+        document = new FileDocument(key);
+        documents.put(key, document);
+        for (String token : tokenize(document.filename)) {
+          tokens.computeIfAbsent(token, t -> new TreeSet<>(BY_PATH)).add(document);
+        }
+        extensions.computeIfAbsent(document.extension, e -> new TreeSet<>(BY_PATH)).add(document);
+      }
+      if (document.versions.containsKey(version)) {
+        return; // already indexed
+      }
+      VersionHit hit = new VersionHit(document.clientPath, version, uploader, timestamp);
+      document.versions.put(version, hit);
+      uploaders.computeIfAbsent(uploader, u -> new TreeSet<>(BY_PATH_AND_VERSION)).add(hit);
+      timestamps.computeIfAbsent(timestamp, t -> new ArrayList<>()).add(hit);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Files with a word in their name starting with {@code prefix}, ignoring case. The name
+   * "my-holiday_photos2023" has the words "my", "holiday", "photos2023" and the whole name.
+   */
+  public Page<FileHit> findByName(String prefix, int offset, int limit) {
+    String from = prefix.toLowerCase(Locale.ROOT);
+    lock.readLock().lock();
+    try {
+      Collection<NavigableSet<FileDocument>> matches =
+          tokens.subMap(from, true, from + Character.MAX_VALUE, true).values();
+      Set<FileDocument> found;
+      if (matches.size() == 1) {
+        found = matches.iterator().next();
+      } else {
+        found = new TreeSet<>(BY_PATH);
+        matches.forEach(found::addAll);
+      }
+      return page(found, offset, limit, FileDocument::toHit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Files with this extension, ignoring case and an initial dot
+   */
+  public Page<FileHit> findByExtension(String extension, int offset, int limit) {
+    String key = extension.replaceFirst("^\\.", "").toLowerCase(Locale.ROOT);
+    lock.readLock().lock();
+    try {
+      return page(extensions.getOrDefault(key, new TreeSet<>(BY_PATH)), offset, limit,
+          FileDocument::toHit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Versions uploaded by this user
+   */
+  public Page<VersionHit> findByUploader(String uploader, int offset, int limit) {
+    lock.readLock().lock();
+    try {
+      return page(uploaders.getOrDefault(uploader, new TreeSet<>(BY_PATH_AND_VERSION)), offset,
+          limit, hit -> hit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Versions committed between two instants, oldest first
+   * 
+   * @param from - in milliseconds since the epoch, inclusive
+   * @param to - in milliseconds since the epoch, inclusive
+   */
+  public Page<VersionHit> findByTime(long from, long to, int offset, int limit) {
+    lock.readLock().lock();
+    try {
+      NavigableMap<Long, List<VersionHit>> range = timestamps.subMap(from, true, to, true);
+      int total = 0;
+      for (List<VersionHit> hits : range.values()) {
+        total += hits.size();
+      }
+      List<VersionHit> items = new ArrayList<>();
+      int position = 0;
+      for (List<VersionHit> hits : range.values()) {
+        if (items.size() >= limit) {
+          break;
+        }
+        if (position + hits.size() <= offset) {
+          position += hits.size();
+          continue;
+        }
+        for (VersionHit hit : hits) {
+          if (position++ >= offset && items.size() < limit) {
+            items.add(hit);
+          }
+        }
+      }
+      return new Page<>(items, offset, total);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The number of files in the index
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return documents.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static <S, T> Page<T> page(Set<S> results, int offset, int limit,
+      Function<S, T> mapper) {
+    List<T> items = new ArrayList<>();
+    Iterator<S> iterator = results.iterator();
+    for (int i = 0; i < offset && iterator.hasNext(); i++) {
+      iterator.next();
+    }
+    while (items.size() < limit && iterator.hasNext()) {
+      items.add(mapper.apply(iterator.next()));
+    }
+    return new Page<>(items, offset, results.size());
+  }
+
+  static List<String> tokenize(String filename) {
+    String name = filename.toLowerCase(Locale.ROOT);
+    List<String> words = new ArrayList<>();
+    words.add(name);
+    for (String word : name.split("[^\\p{L}\\p{N}]+")) {
+      if (!word.isEmpty() && !word.equals(name)) {
+        words.add(word);
+      }
+    }
+    return words;
+  }
+
+  /**
+   * A file and its versions
+   */
+  private static class FileDocument {
+
+    private final Path versionsDirectory;
+    private final Path clientPath;
+    private final String filename;
+    private final String extension;
+    private final NavigableMap<Integer, VersionHit> versions = new TreeMap<>();
+
+    FileDocument(Path versionsDirectory) {
+      this.versionsDirectory = versionsDirectory;
+      String name = versionsDirectory.getFileName().toString();
+      int separator = name.lastIndexOf('#');
+      this.filename = name.substring(0, separator);
+      this.extension = name.substring(separator + 1).toLowerCase(Locale.ROOT);
+      Path clientFilePath;
+      try {
+        clientFilePath = new RepositoryFileResolver(versionsDirectory).getClientFilePath();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      this.clientPath = StorageRouter.getDefault().toLogical(clientFilePath);
+    }
+
+    FileHit toHit() {
+      return new FileHit(clientPath, versionsDirectory,
+          versions.isEmpty() ? 0 : versions.lastKey());
+    }
+  }
+}
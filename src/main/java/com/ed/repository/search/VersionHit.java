@@ -0,0 +1,17 @@
+package com.ed.repository.search;
+
+import java.nio.file.Path;
+
+/**
+ * A version found by uploader or time
+ * 
+ * @param clientPath - the client's path of the file
+ * @param version - the version's number
+ * @param uploader - who uploaded it
+ * @param timestamp - when it was committed, in milliseconds since the epoch
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record VersionHit(Path clientPath, int version, String uploader, long timestamp) {
+}
@@ -0,0 +1,192 @@
+package com.ed.repository.sharding;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+import com.ed.repository.filesystem.VersionWriter;
+import com.ed.repository.tiering.ColdTier;
+import com.ed.repository.utils.AppUtils;
+
+/**
+ * Adds storage roots to a {@link StorageRouter} and moves the user directories that now belong to
+ * them, while the repository stays online.
+ * <p>
+ * The users that will move are pinned to their old root, and the root is added, all at once: the
+ * directories are listed beforehand, so only the routing is changed while the users wait. Users
+ * that took their lock in the meantime, like one whose first upload races the change, are pinned
+ * too, so that they can't be left on the wrong root. Each moved user stays pinned while its
+ * directory is copied. The copy is repeated until a pass finds nothing new, then the user's
+ * uploads are blocked just long enough for a last pass and the switch to the new root. Files
+ * being written aren't copied. The versions never change, so one already in the new root with
+ * the same size and modification time is taken as copied; the index files, and the versions that
+ * differ, are compared byte by byte, so a copy that was cut short is fixed.
+ * <p>
+ * The old copies are left in place, since downloads that started before the switch may still be
+ * reading them. Remove them with {@link #purge(Move)} afterwards.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class ShardRebalancer {
+
+  static final int MAX_ONLINE_PASSES = 5;
+  static final String TEMPORARY_SUFFIX = ".rebalance";
+  static final String INDEX_SUFFIX = ".index.txt";
+
+  /**
+   * A user directory that was moved between two storage roots
+   */
+  public record Move(String user, Path from, Path to) {
+  }
+
+  private final StorageRouter router;
+
+  public ShardRebalancer(StorageRouter router) {
+    super();
+    this.router = router;
+  }
+
+  /**
+   * Add a storage root and move to it the users that the ring assigns to it.
+   * 
+   * @param newRoot - the new storage root
+   * @return the users that were moved
+   * @throws IOException if an I/O error occurs while copying. The users not yet switched keep
+   *         being served by their old root
+   */
+  public synchronized List<Move> addRoot(Path newRoot) throws IOException {
+    Path target = newRoot.toAbsolutePath().normalize();
+    Files.createDirectories(target);
+    Set<String> users = new TreeSet<>();
+    for (Path root : router.getRoots()) {
+      if (!Files.isDirectory(root)) {
+        continue;
+      }
+      try (Stream<Path> userDirectories = Files.list(root)) {
+        userDirectories.filter(Files::isDirectory)
+            .forEach(userDirectory -> users.add(userDirectory.getFileName().toString()));
+      }
+    }
+
+    // pin the users that will move, so that adding the root doesn't change their routing yet
+    List<Move> moves = new ArrayList<>();
+    Lock topology = router.topologyLock().writeLock();
+    topology.lock();
+    try {
+      // with the ones whose directory was created since it was listed
+      users.addAll(router.lockedUsers());
+      for (String user : users) {
+        Path root = router.rootOf(user);
+        if (!root.equals(target) && router.rootWith(target, user).equals(target)) {
+          router.pin(user, root);
+          moves.add(new Move(user, root, target));
+        }
+      }
+      router.addRoot(target);
+    } finally {
+      topology.unlock();
+    }
+
+    List<Move> moved = new ArrayList<>();
+    for (Move move : moves) {
+      if (migrate(move)) {
+        moved.add(move);
+      }
+    }
+    return moved;
+  }
+
+  /**
+   * @return false if the user had no directory to move
+   */
+  private boolean migrate(Move move) throws IOException {
+    Path source = move.from().resolve(move.user());
+    Path destination = move.to().resolve(move.user());
+    for (int pass = 0; pass < MAX_ONLINE_PASSES; pass++) {
+      if (copyTree(source, destination) == 0) {
+        break;
+      }
+    }
+    Lock lock = router.lockOf(move.user()).writeLock();
+    lock.lock();
+    try {
+      boolean exists = Files.isDirectory(source);
+      copyTree(source, destination);
+      router.unpin(move.user());
+      return exists;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Delete the old copy of a moved user directory
+   */
+  public void purge(Move move) throws IOException {
+    Path source = move.from().resolve(move.user());
+    if (Files.exists(source)) {
+      AppUtils.deleteDirectory(source);
+    }
+  }
+
+  /**
+   * Copy the files of {@code source} that are missing or have a different content in
+   * {@code destination}. The temporary files of writes in progress are left out.
+   * 
+   * @return how many files were copied
+   */
+  static int copyTree(Path source, Path destination) throws IOException {
+    int copied = 0;
+    if (!Files.isDirectory(source)) {
+      return copied;
+    }
+    List<Path> paths;
+    try (Stream<Path> walk = Files.walk(source)) {
+      paths = walk.toList();
+    }
+    for (Path path : paths) {
+      Path target = destination.resolve(source.relativize(path).toString());
+      if (Files.isDirectory(path)) {
+        Files.createDirectories(target);
+      } else if (isTemporary(path)) {
+        continue;
+      } else if (!Files.exists(path)) {
+        continue; // renamed or deleted since the walk
+      } else if (!Files.exists(target) || !sameContent(path, target)) {
+        // copy next to the target and rename, so that readers never see half of a file
+        Path temporary = target.resolveSibling(target.getFileName() + TEMPORARY_SUFFIX);
+        Files.copy(path, temporary, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.COPY_ATTRIBUTES);
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        copied++;
+      }
+    }
+    return copied;
+  }
+
+  private static boolean isTemporary(Path file) {
+    String name = file.getFileName().toString();
+    return VersionWriter.isTemporary(file) || name.endsWith(TEMPORARY_SUFFIX)
+        || name.endsWith(ColdTier.TEMPORARY_SUFFIX);
+  }
+
+  private static boolean sameContent(Path file, Path other) throws IOException {
+    if (Files.size(file) != Files.size(other)) {
+      return false;
+    }
+    // a version is copied with its modification time, and never changes after, unlike the index
+    if (!file.getFileName().toString().endsWith(INDEX_SUFFIX)
+        && Files.getLastModifiedTime(file).equals(Files.getLastModifiedTime(other))) {
+      return true;
+    }
+    return Files.mismatch(file, other) == -1;
+  }
+}
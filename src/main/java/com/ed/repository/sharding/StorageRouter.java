@@ -0,0 +1,336 @@
+package com.ed.repository.sharding;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import com.ed.repository.exceptions.RepositoryManagementException;
+
+/**
+ * Spreads the user directories of a logical repository root across several storage roots.
+ * <p>
+ * A path like {@code <logical root>/edam734/dir/file.txt} is stored as
+ * {@code <storage root>/edam734/dir/file.txt}, where the storage root is picked by consistent
+ * hashing of the user's directory name. Adding a root only moves the users that now hash to it
+ * (see {@link ShardRebalancer}). Paths outside of the logical root are not routed.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class StorageRouter {
+
+  static final int VIRTUAL_NODES = 128;
+
+  /**
+   * A router with no storage roots, that leaves every path as it is
+   */
+  public static final StorageRouter NONE = new StorageRouter();
+
+  private static volatile StorageRouter defaultRouter = NONE;
+
+  private final Path logicalRoot;
+  private volatile List<Path> roots = List.of();
+  private volatile NavigableMap<Integer, Path> ring = new TreeMap<>();
+  private final Map<String, Path> pinned = new ConcurrentHashMap<>();
+  private final Map<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+  // taken by every operation on a user directory to lock it, and alone to change the roots
+  private final ReentrantReadWriteLock topologyLock = new ReentrantReadWriteLock();
+
+  private StorageRouter() {
+    this.logicalRoot = null;
+  }
+
+  /**
+   * @param logicalRoot - the root the clients see, like "repo"
+   * @param roots - where the user directories are really stored
+   */
+  public StorageRouter(Path logicalRoot, List<Path> roots) {
+    super();
+    this.logicalRoot = normalize(logicalRoot);
+    for (Path root : roots) {
+      addRoot(root);
+    }
+  }
+
+  /**
+   * The router used to resolve every repository path
+   */
+  public static StorageRouter getDefault() {
+    return defaultRouter;
+  }
+
+  public static void setDefault(StorageRouter router) {
+    defaultRouter = router;
+  }
+
+  public Path getLogicalRoot() {
+    return logicalRoot;
+  }
+
+  public List<Path> getRoots() {
+    return roots;
+  }
+
+  /**
+   * Convert a logical path into the path where it's stored. A path that was already routed is
+   * returned unchanged.
+   * 
+   * @param path - a client's or a repository's path
+   * @return the same path in its storage root, or {@code path} if it's not under the logical root
+   */
+  public Path route(Path path) {
+    String user = userOf(path);
+    if (user == null) {
+      return path;
+    }
+    return rootOf(user).resolve(logicalRoot.relativize(normalize(path)));
+  }
+
+  /**
+   * Convert a stored path back into its logical path
+   * 
+   * @param path - a path under one of the storage roots
+   * @return the same path under the logical root, or {@code path} if it's not in a storage root
+   */
+  public Path toLogical(Path path) {
+    if (logicalRoot == null) {
+      return path;
+    }
+    Path absolute = normalize(path);
+    for (Path root : roots) {
+      if (absolute.startsWith(root) && !absolute.equals(root)) {
+        return logicalRoot.resolve(root.relativize(absolute));
+      }
+    }
+    return path;
+  }
+
+  /**
+   * The stored paths to search for {@code path}. The logical root itself is spread over all the
+   * storage roots, any other path lives in a single one.
+   */
+  public List<Path> resolveAll(Path path) {
+    if (logicalRoot != null && normalize(path).equals(logicalRoot)) {
+      return roots.stream().filter(Files::isDirectory).toList();
+    }
+    return List.of(route(path));
+  }
+
+  /**
+   * The user directory that {@code path} belongs to
+   * 
+   * @return the name of the directory right under the logical root, or null if {@code path}
+   *         isn't inside of one
+   */
+  public String userOf(Path path) {
+    if (logicalRoot == null || roots.isEmpty()) {
+      return null;
+    }
+    Path absolute = normalize(path);
+    if (!absolute.startsWith(logicalRoot) || absolute.equals(logicalRoot)) {
+      return null;
+    }
+    return logicalRoot.relativize(absolute).getName(0).toString();
+  }
+
+  /**
+   * The storage root of this user's directory
+   */
+  public Path rootOf(String user) {
+    Path root = pinned.get(user);
+    return root != null ? root : owner(ring, user);
+  }
+
+  /**
+   * The storage root that the ring would pick for this user if {@code root} were added to it
+   */
+  Path rootWith(Path root, String user) {
+    NavigableMap<Integer, Path> newRing = new TreeMap<>(ring);
+    addNodes(newRing, normalize(root));
+    return owner(newRing, user);
+  }
+
+  public synchronized void addRoot(Path root) {
+    Path normalized = normalize(root);
+    if (roots.contains(normalized)) {
+      return;
+    }
+    NavigableMap<Integer, Path> newRing = new TreeMap<>(ring);
+    addNodes(newRing, normalized);
+    List<Path> newRoots = new ArrayList<>(roots);
+    newRoots.add(normalized);
+    this.ring = newRing;
+    this.roots = List.copyOf(newRoots);
+  }
+
+  /**
+   * Keep routing this user to {@code root} whatever the ring says, until it's unpinned
+   */
+  void pin(String user, Path root) {
+    pinned.put(user, normalize(root));
+  }
+
+  void unpin(String user) {
+    pinned.remove(user);
+  }
+
+  /**
+   * The lock of a user directory. Uploads share its read lock, while the {@link ShardRebalancer}
+   * takes its write lock to switch the directory to another root. Both are taken under
+   * {@link #topologyLock()}, so that the users locked can be known while the roots change.
+   */
+  public ReadWriteLock lockFor(Path path) {
+    String user = userOf(path);
+    return lockOf(user == null ? "" : user);
+  }
+
+  ReadWriteLock lockOf(String user) {
+    ReadWriteLock userLock = locks.computeIfAbsent(user, name -> new ReentrantReadWriteLock());
+    Lock topology = topologyLock.readLock();
+    return new ReadWriteLock() {
+      @Override
+      public Lock readLock() {
+        return new LockedUnder(topology, userLock.readLock());
+      }
+
+      @Override
+      public Lock writeLock() {
+        return new LockedUnder(topology, userLock.writeLock());
+      }
+    };
+  }
+
+  /**
+   * The lock that every user directory's lock is taken under. Its write lock holds off the
+   * operations that are about to start, without waiting for the ones running, so that the users
+   * can be routed again all at once.
+   */
+  ReadWriteLock topologyLock() {
+    return topologyLock;
+  }
+
+  /**
+   * The users whose lock is held or waited for. Stable while {@link #topologyLock()} is held for
+   * writing.
+   */
+  Set<String> lockedUsers() {
+    Set<String> users = new HashSet<>();
+    locks.forEach((user, lock) -> {
+      if (!user.isEmpty() && (lock.getReadLockCount() > 0 || lock.isWriteLocked()
+          || lock.hasQueuedThreads())) {
+        users.add(user);
+      }
+    });
+    return users;
+  }
+
+  private static Path owner(NavigableMap<Integer, Path> ring, String user) {
+    if (ring.isEmpty()) {
+      throw new RepositoryManagementException("There are no storage roots");
+    }
+    Map.Entry<Integer, Path> entry = ring.ceilingEntry(hash(user));
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  private static void addNodes(NavigableMap<Integer, Path> ring, Path root) {
+    for (int i = 0; i < VIRTUAL_NODES; i++) {
+      ring.put(hash(root + "#" + i), root);
+    }
+  }
+
+  /**
+   * String.hashCode is fixed by its specification, so users land on the same root after restarts
+   */
+  private static int hash(String key) {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+
+  private static Path normalize(Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+
+  /**
+   * A lock that is only taken while holding {@code outer}, which is released right after
+   */
+  private static class LockedUnder implements Lock {
+
+    private final Lock outer;
+    private final Lock inner;
+
+    LockedUnder(Lock outer, Lock inner) {
+      this.outer = outer;
+      this.inner = inner;
+    }
+
+    @Override
+    public void lock() {
+      outer.lock();
+      try {
+        inner.lock();
+      } finally {
+        outer.unlock();
+      }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      outer.lockInterruptibly();
+      try {
+        inner.lockInterruptibly();
+      } finally {
+        outer.unlock();
+      }
+    }
+
+    @Override
+    public boolean tryLock() {
+      if (!outer.tryLock()) {
+        return false;
+      }
+      try {
+        return inner.tryLock();
+      } finally {
+        outer.unlock();
+      }
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(time);
+      if (!outer.tryLock(time, unit)) {
+        return false;
+      }
+      try {
+        return inner.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } finally {
+        outer.unlock();
+      }
+    }
+
+    @Override
+    public void unlock() {
+      inner.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
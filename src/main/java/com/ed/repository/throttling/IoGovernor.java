@@ -0,0 +1,289 @@
+package com.ed.repository.throttling;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.ed.repository.exceptions.RepositoryManagementException;
+
+/**
+ * Decides how many uploads and downloads each user may run at once and how fast their bytes flow.
+ * <p>
+ * Each user has a bandwidth of its own, and all of them share a global one. The global bandwidth
+ * is handed out in chunks of up to {@value ThrottledInputStream#CHUNK_SIZE} bytes, taking turns
+ * between the users that are waiting for it (deficit round robin). So every user gets the same
+ * share of it, however many transfers each one runs in parallel. All limits can be changed at
+ * runtime and apply to the operations already running.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class IoGovernor {
+
+  private static volatile IoGovernor defaultGovernor = new IoGovernor();
+
+  private volatile UserLimits defaultLimits = UserLimits.UNLIMITED;
+  private final Map<String, UserLimits> limits = new ConcurrentHashMap<>();
+  private final Map<String, UserState> users = new ConcurrentHashMap<>();
+
+  private final TokenBucket global = new TokenBucket(0, 1);
+  // the users waiting for the global bandwidth, in turn order
+  private final Deque<UserState> globalQueue = new ArrayDeque<>();
+  private final ReentrantLock globalLock = new ReentrantLock();
+  private final Condition globalTurn = globalLock.newCondition();
+  private boolean globalBusy = false;
+
+  /**
+   * The governor used by the repository managers
+   */
+  public static IoGovernor getDefault() {
+    return defaultGovernor;
+  }
+
+  public static void setDefault(IoGovernor governor) {
+    defaultGovernor = governor;
+  }
+
+  /**
+   * Set the limits of the users without limits of their own
+   */
+  public void setDefaultLimits(UserLimits userLimits) {
+    this.defaultLimits = Objects.requireNonNull(userLimits);
+    users.forEach((username, state) -> state.bucket.setRate(limitsOf(username).bytesPerSecond(),
+        burst(limitsOf(username).bytesPerSecond())));
+  }
+
+  public void setLimits(String username, UserLimits userLimits) {
+    limits.put(username, Objects.requireNonNull(userLimits));
+    stateOf(username).bucket.setRate(userLimits.bytesPerSecond(),
+        burst(userLimits.bytesPerSecond()));
+  }
+
+  public void removeLimits(String username) {
+    limits.remove(username);
+    UserLimits userLimits = limitsOf(username);
+    stateOf(username).bucket.setRate(userLimits.bytesPerSecond(),
+        burst(userLimits.bytesPerSecond()));
+  }
+
+  public UserLimits limitsOf(String username) {
+    return limits.getOrDefault(username, defaultLimits);
+  }
+
+  /**
+   * Set the bandwidth shared by all users
+   * 
+   * @param bytesPerSecond - zero or less means unlimited
+   */
+  public void setGlobalBytesPerSecond(long bytesPerSecond) {
+    global.setRate(bytesPerSecond, burst(bytesPerSecond));
+  }
+
+  /**
+   * Start an operation of this user.
+   * 
+   * @param username - who's uploading or downloading
+   * @return a permit that must be closed when the operation ends
+   * @throws RepositoryManagementException if the user has too many operations running
+   */
+  public Permit admit(String username) throws RepositoryManagementException {
+    UserState state = stateOf(username);
+    int max = limitsOf(username).maxConcurrentOperations();
+    int active = state.active.incrementAndGet();
+    if (max > 0 && active > max) {
+      state.active.decrementAndGet();
+      state.rejected.increment();
+      throw new RepositoryManagementException(
+          String.format("User %s has too many operations running", username));
+    }
+    state.admitted.increment();
+    return new Permit(state);
+  }
+
+  /**
+   * The decisions made for each user so far, sorted by username
+   */
+  public Map<String, ThrottleMetrics> getMetrics() {
+    Map<String, ThrottleMetrics> metrics = new TreeMap<>();
+    users.forEach((username, state) -> metrics.put(username, state.metrics()));
+    return metrics;
+  }
+
+  public ThrottleMetrics getMetrics(String username) {
+    return stateOf(username).metrics();
+  }
+
+  private UserState stateOf(String username) {
+    return users.computeIfAbsent(Objects.toString(username), name -> {
+      long rate = limitsOf(name).bytesPerSecond();
+      return new UserState(new TokenBucket(rate, burst(rate)));
+    });
+  }
+
+  /**
+   * Allow one second worth of bytes at once, but at least one chunk
+   */
+  private static long burst(long bytesPerSecond) {
+    return Math.max(bytesPerSecond, ThrottledInputStream.CHUNK_SIZE);
+  }
+
+  private void consume(UserState state, long bytes) {
+    state.bytes.add(bytes);
+    long start = System.nanoTime();
+    sleep(state.bucket.reserve(bytes));
+    if (global.getRate() > 0) {
+      awaitTurn(state, bytes);
+      try {
+        sleep(global.reserve(bytes));
+      } finally {
+        endTurn(state);
+      }
+    }
+    long waited = System.nanoTime() - start;
+    if (waited > 0) {
+      state.throttledNanos.add(waited);
+    }
+  }
+
+  /**
+   * Wait until it's the turn of this transfer of {@code state} to take the global bandwidth. Each
+   * user in its turn may take {@value ThrottledInputStream#CHUNK_SIZE} bytes, plus what it didn't
+   * use in its previous turns while it kept waiting.
+   */
+  private void awaitTurn(UserState state, long bytes) {
+    Object transfer = new Object();
+    globalLock.lock();
+    try {
+      state.waiting.add(transfer);
+      if (state.waiting.size() == 1) {
+        globalQueue.add(state);
+        if (globalQueue.peek() == state) {
+          state.deficit = ThrottledInputStream.CHUNK_SIZE;
+        }
+      }
+      while (true) {
+        if (!globalBusy && globalQueue.peek() == state && state.waiting.peek() == transfer) {
+          if (state.deficit >= bytes) {
+            state.deficit -= bytes;
+            globalBusy = true;
+            return;
+          }
+          // the user's share of this round is spent, it's the next user's turn
+          globalQueue.add(globalQueue.poll());
+          globalQueue.peek().deficit += ThrottledInputStream.CHUNK_SIZE;
+          globalTurn.signalAll();
+          continue;
+        }
+        globalTurn.await();
+      }
+    } catch (InterruptedException e) {
+      state.waiting.remove(transfer);
+      if (state.waiting.isEmpty()) {
+        leaveQueue(state);
+      }
+      globalTurn.signalAll();
+      Thread.currentThread().interrupt();
+      throw new RepositoryManagementException("Interrupted while throttled", e);
+    } finally {
+      globalLock.unlock();
+    }
+  }
+
+  private void endTurn(UserState state) {
+    globalLock.lock();
+    try {
+      state.waiting.poll();
+      if (state.waiting.isEmpty()) {
+        leaveQueue(state);
+      }
+      globalBusy = false;
+      globalTurn.signalAll();
+    } finally {
+      globalLock.unlock();
+    }
+  }
+
+  private void leaveQueue(UserState state) {
+    boolean hadTurn = globalQueue.peek() == state;
+    globalQueue.remove(state);
+    state.deficit = 0; // a user that stops waiting doesn't keep its unused share
+    if (hadTurn && !globalQueue.isEmpty()) {
+      globalQueue.peek().deficit += ThrottledInputStream.CHUNK_SIZE;
+    }
+  }
+
+  private static void sleep(long nanos) {
+    if (nanos <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryManagementException("Interrupted while throttled", e);
+    }
+  }
+
+  private static class UserState {
+
+    private final TokenBucket bucket;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    // guarded by globalLock: the transfers waiting for the global bandwidth, in order, and the
+    // bytes this user may still take in its turn
+    private final Deque<Object> waiting = new ArrayDeque<>();
+    private long deficit = 0;
+
+    UserState(TokenBucket bucket) {
+      this.bucket = bucket;
+    }
+
+    ThrottleMetrics metrics() {
+      return new ThrottleMetrics(active.get(), admitted.sum(), rejected.sum(), bytes.sum(),
+          throttledNanos.sum());
+    }
+  }
+
+  /**
+   * One running operation of a user. Closing it more than once has no effect.
+   */
+  public class Permit implements AutoCloseable {
+
+    private final UserState state;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Permit(UserState state) {
+      this.state = state;
+    }
+
+    /**
+     * Limit the bandwidth of the bytes read from {@code in}. Closing the returned stream also
+     * closes this permit.
+     */
+    public InputStream throttle(InputStream in) {
+      return new ThrottledInputStream(in, this);
+    }
+
+    void consume(long bytes) {
+      IoGovernor.this.consume(state, bytes);
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        state.active.decrementAndGet();
+      }
+    }
+  }
+}
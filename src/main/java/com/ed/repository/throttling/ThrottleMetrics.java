@@ -0,0 +1,17 @@
+package com.ed.repository.throttling;
+
+/**
+ * What the {@link IoGovernor} decided for one user so far
+ * 
+ * @param active - operations running now
+ * @param admitted - operations that were allowed to start
+ * @param rejected - operations refused because too many were running
+ * @param bytes - bytes transferred by the admitted operations
+ * @param throttledNanos - total time spent waiting for bandwidth
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record ThrottleMetrics(int active, long admitted, long rejected, long bytes,
+    long throttledNanos) {
+}
@@ -0,0 +1,57 @@
+package com.ed.repository.throttling;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that reads in chunks and waits for the {@link IoGovernor} after each one. Closing
+ * it ends the operation it belongs to.
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final IoGovernor.Permit permit;
+
+  ThrottledInputStream(InputStream in, IoGovernor.Permit permit) {
+    super(in);
+    this.permit = permit;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b != -1) {
+      permit.consume(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    int n = super.read(bytes, offset, Math.min(length, CHUNK_SIZE));
+    if (n > 0) {
+      permit.consume(n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = super.skip(Math.min(n, CHUNK_SIZE));
+    if (skipped > 0) {
+      permit.consume(skipped);
+    }
+    return skipped;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      permit.close();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.ed.repository.throttling;
+
+/**
+ * A token bucket of bytes. Tokens are added at {@code rate} per second up to {@code burst}, and
+ * can be borrowed: a reservation bigger than the available tokens leaves the bucket in debt, and
+ * the caller is told how long to wait until it's paid.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class TokenBucket {
+
+  private long rate;
+  private long burst;
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * @param rate - bytes per second. Zero or less means unlimited
+   * @param burst - the most bytes that can be taken at once without waiting
+   */
+  public TokenBucket(long rate, long burst) {
+    super();
+    this.rate = rate;
+    this.burst = Math.max(burst, 1);
+    this.tokens = this.burst;
+    this.lastRefill = System.nanoTime();
+  }
+
+  public synchronized void setRate(long rate, long burst) {
+    refill();
+    this.rate = rate;
+    this.burst = Math.max(burst, 1);
+    this.tokens = Math.min(tokens, this.burst);
+  }
+
+  public synchronized long getRate() {
+    return rate;
+  }
+
+  /**
+   * Take {@code bytes} tokens from the bucket.
+   * 
+   * @param bytes - the number of tokens to take
+   * @return how many nanoseconds the caller has to wait before using them
+   */
+  public synchronized long reserve(long bytes) {
+    if (rate <= 0) {
+      return 0;
+    }
+    refill();
+    tokens -= bytes;
+    if (tokens >= 0) {
+      return 0;
+    }
+    return (long) (-tokens * 1_000_000_000L / rate);
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    if (rate > 0) {
+      tokens = Math.min(burst, tokens + (now - lastRefill) * (double) rate / 1_000_000_000L);
+    }
+    lastRefill = now;
+  }
+}
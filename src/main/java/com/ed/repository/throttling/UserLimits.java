@@ -0,0 +1,17 @@
+package com.ed.repository.throttling;
+
+/**
+ * The limits of a single user
+ * 
+ * @param maxConcurrentOperations - how many uploads and downloads can run at the same time. Zero
+ *        or less means unlimited
+ * @param bytesPerSecond - the bandwidth shared by all of them. Zero or less means unlimited
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record UserLimits(int maxConcurrentOperations, long bytesPerSecond) {
+
+  public static final UserLimits UNLIMITED = new UserLimits(0, 0);
+
+}
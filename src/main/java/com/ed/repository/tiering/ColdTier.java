@@ -0,0 +1,508 @@
+package com.ed.repository.tiering;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+import com.ed.repository.filesystem.IndexFileEntry;
+import com.ed.repository.filesystem.PathParser;
+import com.ed.repository.filesystem.RepositoryFileResolver;
+import com.ed.repository.sharding.StorageRouter;
+
+/**
+ * Moves the versions that nobody reads anymore from the repository's root to a cold root, usually
+ * on a cheaper volume, compressed with gzip.
+ * <p>
+ * A version is cold when it isn't one of the latest {@code keepLatest} of its file, it was written
+ * more than {@code minAge} ago, and since the previous migration it was read at most
+ * {@code maxReads} times and not at all in the last {@code minAge}. The cold copy has the same path
+ * relative to its root as the version had, with a .gz suffix, and the same modification time. Its
+ * gzip header records the size of the version (see {@link #originalSize(Path)}).
+ * <p>
+ * When the repository's root is the logical root of the default {@link StorageRouter}, its
+ * versions are in the router's storage roots, and a cold copy has the same path relative to the
+ * cold root as the version has relative to its storage root. Since that path starts with the
+ * user's directory, it's the same whichever root the user is moved to.
+ * <p>
+ * Migrating never takes the lock of a file, since uploads only ever add a version after the latest
+ * ones, which are never migrated. A version is complete in the cold root before it's removed from
+ * the hot one, so it can always be found in one of them (see {@link #locate(Path)}).
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class ColdTier implements AutoCloseable {
+
+  /**
+   * When a version is cold
+   *
+   * @param minAge - how long a version has to be left alone
+   * @param maxReads - the most reads a cold version had since the previous migration
+   * @param keepLatest - how many of the latest versions of a file are never migrated
+   */
+  public record Policy(Duration minAge, int maxReads, int keepLatest) {
+
+    public Policy {
+      if (keepLatest < 1) {
+        throw new IllegalArgumentException("The latest version of a file is never cold");
+      }
+    }
+  }
+
+  /**
+   * The outcome of a whole migration
+   *
+   * @param versionsMoved - how many versions went to the cold root
+   * @param bytesMoved - their size before compression
+   * @param bytesStored - their size in the cold root
+   */
+  public record MigrationReport(int versionsMoved, long bytesMoved, long bytesStored) {
+  }
+
+  public static final String COMPRESSED_SUFFIX = ".gz";
+  public static final String TEMPORARY_SUFFIX = ".migrating";
+  static final int BUFFER_SIZE = 64 * 1024;
+  // a gzip header with an extra field, "ES", that holds the size of the version
+  private static final int HEADER_LENGTH = 24;
+  private static final byte FEXTRA = 4;
+  private static final short SIZE_FIELD_ID = 'E' | 'S' << 8;
+
+  private static volatile ColdTier defaultTier = null;
+
+  private final Path hotRoot;
+  private final Path coldRoot;
+  private final Policy policy;
+  private final Map<Key, Reads> reads = new ConcurrentHashMap<>();
+  // migrating and promoting the same version are serialized, nothing else is
+  private final ReentrantLock[] locks = new ReentrantLock[64];
+  private volatile boolean promoteOnRead = false;
+  private volatile MigrationReport lastReport = null;
+  private ScheduledExecutorService scheduler = null;
+
+  /**
+   * @param hotRoot - the root of the repository
+   * @param coldRoot - where cold versions go. It must not be inside {@code hotRoot}
+   * @param policy - which versions are cold
+   */
+  public ColdTier(Path hotRoot, Path coldRoot, Policy policy) {
+    super();
+    this.hotRoot = normalize(hotRoot);
+    this.coldRoot = normalize(coldRoot);
+    this.policy = policy;
+    if (this.coldRoot.startsWith(this.hotRoot)) {
+      throw new IllegalArgumentException("The cold root can't be inside the repository");
+    }
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * The tier where the versions missing from the repository are searched, or null if there's none
+   */
+  public static ColdTier getDefault() {
+    return defaultTier;
+  }
+
+  public static void setDefault(ColdTier tier) {
+    defaultTier = tier;
+  }
+
+  /**
+   * Whether reading a cold version brings it back to the repository's root
+   */
+  public void setPromoteOnRead(boolean promoteOnRead) {
+    this.promoteOnRead = promoteOnRead;
+  }
+
+  /**
+   * Migrate every {@code interval}, in a background thread
+   */
+  public synchronized void start(Duration interval) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "cold-tier-migration");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        migrate();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * The report of the last migration that finished, or null if none did
+   */
+  public MigrationReport getLastReport() {
+    return lastReport;
+  }
+
+  /**
+   * Count a read of a version, so that it isn't considered cold
+   *
+   * @param versionFile - the path of the version in the repository
+   */
+  public void recordRead(Path versionFile) {
+    Key key = key(normalize(versionFile));
+    if (key != null) {
+      reads.computeIfAbsent(key, k -> new Reads()).read();
+    }
+  }
+
+  /**
+   * Where a version is stored. If it was migrated, it's brought back first when promotion on read
+   * is on.
+   *
+   * @param versionFile - the path of the version in the repository
+   * @return {@code versionFile} if it's in the repository's root, or if it isn't anywhere. Else,
+   *         the version's file in the cold root, to be read with {@link #openStored(Path)}
+   * @throws IOException if an I/O error occurs
+   */
+  public Path locate(Path versionFile) throws IOException {
+    Path normalized = normalize(versionFile);
+    Key key = key(normalized);
+    if (key == null || Files.exists(versionFile)) {
+      return versionFile;
+    }
+    Path cold = listColdVersions(key.directory()).get(key.version());
+    if (cold == null) {
+      return versionFile;
+    }
+    if (promoteOnRead) {
+      return promote(key, cold, versionFile);
+    }
+    return cold;
+  }
+
+  /**
+   * The versions of a file that are in the cold root
+   *
+   * @param versionsDirectory - a directory like dir1/dir2.../filename#EXT in the repository
+   * @return each version's compressed file by version number, in order
+   * @throws IOException if an I/O error occurs
+   */
+  public Map<Integer, Path> listColdVersions(Path versionsDirectory) throws IOException {
+    Map<Integer, Path> versionFiles = new TreeMap<>();
+    Path normalized = normalize(versionsDirectory);
+    Path root = rootOf(normalized);
+    if (root == null) {
+      return versionFiles;
+    }
+    Path coldDirectory = coldRoot.resolve(root.relativize(normalized).toString());
+    if (!Files.isDirectory(coldDirectory)) {
+      return versionFiles;
+    }
+    try (Stream<Path> files = Files.list(coldDirectory)) {
+      files.filter(ColdTier::isCompressed).forEach(file -> {
+        int version = PathParser.getVersionFromFilename(file.getFileName().toString());
+        if (version > 0) {
+          versionFiles.put(version, file);
+        }
+      });
+    }
+    return versionFiles;
+  }
+
+  /**
+   * Whether a version's file is a compressed copy in a cold root
+   */
+  public static boolean isCompressed(Path file) {
+    return file.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+  }
+
+  /**
+   * The size of a version as it was uploaded, wherever it's stored
+   *
+   * @param storedFile - a version's file, in the repository or in a cold root
+   * @return the size in bytes
+   * @throws IOException if an I/O error occurs
+   */
+  public static long originalSize(Path storedFile) throws IOException {
+    if (!isCompressed(storedFile)) {
+      return Files.size(storedFile);
+    }
+    try (InputStream in = Files.newInputStream(storedFile)) {
+      ByteBuffer header = ByteBuffer.wrap(in.readNBytes(HEADER_LENGTH)).order(LITTLE_ENDIAN);
+      if (header.limit() == HEADER_LENGTH && (header.get(3) & FEXTRA) != 0
+          && header.getShort(12) == SIZE_FIELD_ID && header.getShort(14) == Long.BYTES) {
+        return header.getLong(16);
+      }
+    }
+    // compressed before the size was recorded
+    try (InputStream in = openStored(storedFile)) {
+      return in.transferTo(OutputStream.nullOutputStream());
+    }
+  }
+
+  /**
+   * Open a version's file wherever it's stored
+   *
+   * @param storedFile - a version's file, in the repository or in a cold root
+   * @return a stream with the content of the version, as uploaded
+   * @throws IOException if an I/O error occurs
+   */
+  public static InputStream openStored(Path storedFile) throws IOException {
+    InputStream in = Files.newInputStream(storedFile);
+    if (!isCompressed(storedFile)) {
+      return in;
+    }
+    try {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Move all cold versions once. A root or a directory that can't be migrated is logged and
+   * skipped, the next migration will try it again.
+   *
+   * @return what was moved
+   */
+  public MigrationReport migrate() {
+    long now = System.currentTimeMillis();
+    int moved = 0;
+    long bytesMoved = 0;
+    long bytesStored = 0;
+    for (Path root : StorageRouter.getDefault().resolveAll(hotRoot)) {
+      List<Path> directories;
+      try {
+        directories = FileSystemEnvironmentResolver.findVersionDirectories(root);
+      } catch (IOException e) {
+        e.printStackTrace();
+        continue;
+      }
+      for (Path directory : directories) {
+        try {
+          Path indexFile = new RepositoryFileResolver(directory).getIndexFilePath();
+          int latestVersion = IndexFileEntry.readEntry(indexFile).getKey();
+          Map<Integer, Path> versionFiles = FileSystemEnvironmentResolver.listVersions(directory);
+          for (Map.Entry<Integer, Path> versionFile : versionFiles.entrySet()) {
+            Path file = normalize(versionFile.getValue());
+            if (versionFile.getKey() > latestVersion - policy.keepLatest()
+                || rootOf(file) == null
+                || !isCold(new Key(file.getParent(), versionFile.getKey()), file, now)) {
+              continue;
+            }
+            long[] sizes = moveToCold(file);
+            if (sizes != null) {
+              moved++;
+              bytesMoved += sizes[0];
+              bytesStored += sizes[1];
+            }
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    // only the reads since this migration count for the next one
+    reads.values().forEach(Reads::reset);
+    MigrationReport report = new MigrationReport(moved, bytesMoved, bytesStored);
+    this.lastReport = report;
+    return report;
+  }
+
+  private boolean isCold(Key key, Path file, long now) throws IOException {
+    long minAge = policy.minAge().toMillis();
+    if (now - Files.getLastModifiedTime(file).toMillis() < minAge) {
+      return false;
+    }
+    Reads versionReads = reads.get(key);
+    return versionReads == null
+        || versionReads.count.get() <= policy.maxReads() && now - versionReads.last >= minAge;
+  }
+
+  /**
+   * @return the size of the version and of its compressed copy, or null if it's no longer there
+   */
+  private long[] moveToCold(Path file) throws IOException {
+    Key key = key(file);
+    ReentrantLock lock = lockFor(key);
+    lock.lock();
+    try {
+      if (!Files.exists(file)) {
+        return null; // migrated by another thread
+      }
+      Path target = coldRoot.resolve(rootOf(file).relativize(file) + COMPRESSED_SUFFIX);
+      Files.createDirectories(target.getParent());
+      Path temporary = target.resolveSibling(target.getFileName() + TEMPORARY_SUFFIX);
+      try {
+        compress(file, temporary);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+          channel.force(true);
+        }
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.setLastModifiedTime(temporary, modified);
+        Files.move(temporary, target, REPLACE_EXISTING, ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+      long size = Files.size(file);
+      try {
+        Files.delete(file);
+      } catch (IOException e) {
+        // still open somewhere it can't be removed from, the next migration will try again
+        Files.deleteIfExists(target);
+        return null;
+      }
+      reads.remove(key);
+      return new long[] {size, Files.size(target)};
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Write a gzip file like {@link GZIPOutputStream} does, but with the size of the content in the
+   * header, where it can be read without decompressing
+   */
+  private static void compress(Path file, Path target) throws IOException {
+    long size = Files.size(file);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(LITTLE_ENDIAN);
+    header.putShort((short) GZIPInputStream.GZIP_MAGIC).put((byte) Deflater.DEFLATED).put(FEXTRA)
+        .putInt(0) // no modification time, the file's own is kept
+        .put((byte) 0).put((byte) 255) // no extra flags, unknown OS
+        .putShort((short) (HEADER_LENGTH - 12)).putShort(SIZE_FIELD_ID)
+        .putShort((short) Long.BYTES).putLong(size);
+    CRC32 crc = new CRC32();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try (InputStream in = new CheckedInputStream(Files.newInputStream(file), crc);
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), BUFFER_SIZE)) {
+      out.write(header.array());
+      DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+      long written = in.transferTo(deflated);
+      deflated.finish();
+      ByteBuffer trailer = ByteBuffer.allocate(8).order(LITTLE_ENDIAN);
+      trailer.putInt((int) crc.getValue()).putInt((int) written);
+      out.write(trailer.array());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private Path promote(Key key, Path cold, Path versionFile) throws IOException {
+    ReentrantLock lock = lockFor(key);
+    lock.lock();
+    try {
+      String name = cold.getFileName().toString();
+      Path target =
+          versionFile.resolveSibling(name.substring(0, name.length() - COMPRESSED_SUFFIX.length()));
+      if (Files.exists(target)) {
+        return target; // promoted by another reader
+      }
+      Path temporary = Files.createTempFile(target.getParent(), ".promote-", ".tmp");
+      try {
+        try (InputStream in = openStored(cold)) {
+          Files.copy(in, temporary, REPLACE_EXISTING);
+        }
+        Files.setLastModifiedTime(temporary, Files.getLastModifiedTime(cold));
+        Files.move(temporary, target, ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+      Files.deleteIfExists(cold);
+      return target;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the key of a version in the repository's root, or null if it isn't one
+   */
+  private Key key(Path versionFile) {
+    if (rootOf(versionFile) == null || versionFile.getParent() == null) {
+      return null;
+    }
+    int version = PathParser.getVersionFromFilename(versionFile.getFileName().toString());
+    return version > 0 ? new Key(versionFile.getParent(), version) : null;
+  }
+
+  /**
+   * @return the root that {@code path} is in, the repository's root or one of its storage roots,
+   *         or null if it's in none of them
+   */
+  private Path rootOf(Path path) {
+    if (path.startsWith(hotRoot)) {
+      return hotRoot;
+    }
+    StorageRouter router = StorageRouter.getDefault();
+    if (hotRoot.equals(router.getLogicalRoot())) {
+      for (Path root : router.getRoots()) {
+        if (path.startsWith(root)) {
+          return root;
+        }
+      }
+    }
+    return null;
+  }
+
+  private ReentrantLock lockFor(Key key) {
+    return locks[Math.floorMod(key.hashCode(), locks.length)];
+  }
+
+  private static Path normalize(Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+
+  private record Key(Path directory, int version) {
+  }
+
+  private static class Reads {
+
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile long last = 0;
+
+    void read() {
+      count.incrementAndGet();
+      last = System.currentTimeMillis();
+    }
+
+    void reset() {
+      count.set(0);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package com.ed.repository.usage;
+
+/**
+ * The storage used by a directory and everything under it
+ * 
+ * @param bytes - the size of all its versions
+ * @param versions - the number of versions
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public record Usage(long bytes, long versions) {
+
+  public static final Usage NONE = new Usage(0, 0);
+
+  Usage plus(long moreBytes, long moreVersions) {
+    return new Usage(bytes + moreBytes, versions + moreVersions);
+  }
+}
@@ -0,0 +1,337 @@
+package com.ed.repository.usage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import com.ed.repository.exceptions.QuotaExceededException;
+import com.ed.repository.filesystem.CommitEvent;
+import com.ed.repository.filesystem.CommitListener;
+import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
+import com.ed.repository.filesystem.RepositoryFileResolver;
+import com.ed.repository.sharding.StorageRouter;
+import com.ed.repository.tiering.ColdTier;
+
+/**
+ * Keeps how many bytes and versions each directory under a root holds, so that usage reports and
+ * quota checks don't have to walk the tree.
+ * <p>
+ * Every directory level above a version is updated when the version is committed. The first
+ * level under the root is the user's directory, which is what quotas apply to. An upload reserves
+ * its size under the quota until it's over, so that uploads running at the same time can't go
+ * over it together. The counters are saved to a state file and loaded from it at start. A marker
+ * file next to it tells whether the last run was closed cleanly; if it wasn't, or the state file
+ * is missing, the counters are rebuilt from disk. The commits are followed from the start, and a
+ * version that a rebuild finds on disk is counted once even if its commit arrives meanwhile.
+ *
+ * @author Eduardo Amorim
+ *
+ */
+public class UsageLedger implements CommitListener, AutoCloseable {
+
+  /**
+   * Bytes held under a user's quota for an upload that's running, until it's closed
+   */
+  public final class Reservation implements AutoCloseable {
+
+    private final String user;
+    private final long bytes;
+    private boolean closed = false;
+
+    private Reservation(String user, long bytes) {
+      this.user = user;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void close() {
+      synchronized (UsageLedger.this) {
+        if (!closed && user != null) {
+          reserved.merge(user, -bytes, Long::sum);
+        }
+        closed = true;
+      }
+    }
+  }
+
+  private static volatile UsageLedger defaultLedger = null;
+
+  private final Path root;
+  private final Path stateFile;
+  private final Path runningMarker;
+  private final Map<String, Usage> counters = new ConcurrentHashMap<>();
+  private final Map<String, Long> quotas = new ConcurrentHashMap<>();
+  private final Map<String, Long> reserved = new ConcurrentHashMap<>();
+  // the version files counted by the rebuild that's running, or null
+  private Set<Path> rebuilt = null;
+  private volatile long defaultQuota = 0;
+
+  /**
+   * @param root - the directory whose usage is accounted, like "repo"
+   * @param stateFile - where the counters are saved
+   */
+  public UsageLedger(Path root, Path stateFile) {
+    super();
+    this.root = root.toAbsolutePath().normalize();
+    this.stateFile = stateFile;
+    this.runningMarker = stateFile.resolveSibling(stateFile.getFileName() + ".running");
+  }
+
+  /**
+   * The ledger that checks the quotas of every upload, or null if there's none
+   */
+  public static UsageLedger getDefault() {
+    return defaultLedger;
+  }
+
+  public static void setDefault(UsageLedger ledger) {
+    defaultLedger = ledger;
+  }
+
+  /**
+   * Load the counters, or rebuild them if they were never saved or the last run didn't close,
+   * and keep them up to date
+   */
+  public void start() throws IOException {
+    // listen first, so that no commit is missed while loading or rebuilding
+    FileSystemEnvironmentResolver.addCommitListener(this);
+    try {
+      if (Files.exists(stateFile) && !Files.exists(runningMarker)) {
+        load();
+      } else {
+        rebuild();
+      }
+      Files.createDirectories(runningMarker.toAbsolutePath().getParent());
+      Files.writeString(runningMarker, Long.toString(ProcessHandle.current().pid()));
+    } catch (IOException | RuntimeException e) {
+      FileSystemEnvironmentResolver.removeCommitListener(this);
+      throw e;
+    }
+  }
+
+  /**
+   * Stop following the commits and save the counters
+   */
+  @Override
+  public void close() throws IOException {
+    FileSystemEnvironmentResolver.removeCommitListener(this);
+    save();
+    Files.deleteIfExists(runningMarker);
+  }
+
+  /**
+   * Count again every version under the root. The commits that arrive meanwhile are counted too,
+   * once.
+   */
+  public void rebuild() throws IOException {
+    synchronized (this) {
+      counters.clear();
+      rebuilt = new HashSet<>();
+    }
+    try {
+      for (Path storedRoot : StorageRouter.getDefault().resolveAll(root)) {
+        for (Path directory : FileSystemEnvironmentResolver.findVersionDirectories(storedRoot)) {
+          for (Path versionFile : FileSystemEnvironmentResolver.listVersions(directory).values()) {
+            long size = ColdTier.originalSize(versionFile);
+            synchronized (this) {
+              if (rebuilt.add(identity(versionFile))) {
+                add(directory, size, 1);
+              }
+            }
+          }
+        }
+      }
+    } finally {
+      synchronized (this) {
+        rebuilt = null;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void committed(CommitEvent event) {
+    if (rebuilt == null || rebuilt.add(identity(event.versionFile()))) {
+      add(event.versionFile().getParent(), event.size(), 1);
+    }
+  }
+
+  /**
+   * The same path for a version whether it's hot or in the cold tier
+   */
+  private static Path identity(Path versionFile) {
+    Path absolute = versionFile.toAbsolutePath().normalize();
+    String name = absolute.getFileName().toString();
+    return ColdTier.isCompressed(absolute)
+        ? absolute.resolveSibling(
+            name.substring(0, name.length() - ColdTier.COMPRESSED_SUFFIX.length()))
+        : absolute;
+  }
+
+  private synchronized void add(Path versionsDirectory, long bytes, long versions) {
+    List<String> levels = levels(versionsDirectory);
+    for (String level : levels) {
+      counters.merge(level, Usage.NONE.plus(bytes, versions),
+          (usage, delta) -> usage.plus(delta.bytes(), delta.versions()));
+    }
+  }
+
+  /**
+   * The keys of the counters to update for a file: the root (""), every directory down to the
+   * file, and the file's client path
+   */
+  private List<String> levels(Path versionsDirectory) {
+    List<String> levels = new ArrayList<>();
+    Path clientFile;
+    try {
+      clientFile = new RepositoryFileResolver(versionsDirectory).getClientFilePath();
+    } catch (IOException e) {
+      return levels;
+    }
+    Path logical = StorageRouter.getDefault().toLogical(clientFile).toAbsolutePath().normalize();
+    if (!logical.startsWith(root)) {
+      return levels;
+    }
+    Path relative = root.relativize(logical);
+    levels.add("");
+    for (int i = 1; i <= relative.getNameCount(); i++) {
+      levels.add(key(relative.subpath(0, i)));
+    }
+    return levels;
+  }
+
+  /**
+   * The usage of a directory, or of a file by its client path
+   * 
+   * @param path - a path under the root, or the root itself
+   */
+  public Usage getUsage(Path path) {
+    Path absolute = path.toAbsolutePath().normalize();
+    if (!absolute.startsWith(root)) {
+      return Usage.NONE;
+    }
+    String key = absolute.equals(root) ? "" : key(root.relativize(absolute));
+    return counters.getOrDefault(key, Usage.NONE);
+  }
+
+  /**
+   * The usage of a user's directory
+   */
+  public Usage getUserUsage(String user) {
+    return counters.getOrDefault(user, Usage.NONE);
+  }
+
+  /**
+   * The usage of every counted directory and file, by path relative to the root
+   */
+  public Map<String, Usage> getAllUsage() {
+    return new TreeMap<>(counters);
+  }
+
+  /**
+   * Limit the bytes a user's directory can hold
+   * 
+   * @param maxBytes - zero or less means no limit
+   */
+  public void setQuota(String user, long maxBytes) {
+    quotas.put(user, maxBytes);
+  }
+
+  /**
+   * Set the quota of users without one of their own
+   */
+  public void setDefaultQuota(long maxBytes) {
+    this.defaultQuota = maxBytes;
+  }
+
+  public long getQuota(String user) {
+    return quotas.getOrDefault(user, defaultQuota);
+  }
+
+  /**
+   * Reject an upload that would take its user's directory over quota. When the size of the upload
+   * isn't known, it's only rejected if the directory is already full. The bytes reserved by the
+   * uploads running count as used.
+   * 
+   * @param clientPath - where the file is being uploaded to
+   * @param expectedBytes - the size of the upload, or -1 if unknown
+   * @throws QuotaExceededException if there's no room for the upload
+   */
+  public void checkQuota(Path clientPath, long expectedBytes) throws QuotaExceededException {
+    reserve(clientPath, expectedBytes, false);
+  }
+
+  /**
+   * Like {@link #checkQuota(Path, long)}, and hold {@code expectedBytes} under the quota until the
+   * reservation is closed, when the upload is over whether it succeeded or not
+   * 
+   * @return the reservation, to close once the upload is committed or failed
+   * @throws QuotaExceededException if there's no room for the upload
+   */
+  public Reservation reserve(Path clientPath, long expectedBytes) throws QuotaExceededException {
+    return reserve(clientPath, expectedBytes, true);
+  }
+
+  private synchronized Reservation reserve(Path clientPath, long expectedBytes, boolean hold)
+      throws QuotaExceededException {
+    Path absolute = clientPath.toAbsolutePath().normalize();
+    if (!absolute.startsWith(root) || absolute.equals(root)) {
+      return new Reservation(null, 0);
+    }
+    String user = root.relativize(absolute).getName(0).toString();
+    long quota = getQuota(user);
+    long used = getUserUsage(user).bytes() + reserved.getOrDefault(user, 0L);
+    if (quota > 0
+        && (used + Math.max(expectedBytes, 0) > quota || (expectedBytes < 0 && used >= quota))) {
+      throw new QuotaExceededException(
+          String.format("User %s is using %d of a %d bytes quota", user, used, quota));
+    }
+    if (!hold) {
+      return null;
+    }
+    long bytes = Math.max(expectedBytes, 0);
+    reserved.merge(user, bytes, Long::sum);
+    return new Reservation(user, bytes);
+  }
+
+  /**
+   * Write the counters to the state file, replacing it atomically
+   */
+  public synchronized void save() throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Usage> counter : new TreeMap<>(counters).entrySet()) {
+      Usage usage = counter.getValue();
+      lines.add(String.format("%d %d %s", usage.bytes(), usage.versions(), counter.getKey()));
+    }
+    Path absolute = stateFile.toAbsolutePath();
+    Files.createDirectories(absolute.getParent());
+    Path temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+    Files.write(temporary, lines, StandardCharsets.UTF_8);
+    Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Add the saved counters to the commits counted since the start
+   */
+  private synchronized void load() throws IOException {
+    for (String line : Files.readAllLines(stateFile, StandardCharsets.UTF_8)) {
+      String[] parts = line.split(" ", 3);
+      if (parts.length == 3) {
+        counters.merge(parts[2], new Usage(Long.parseLong(parts[0]), Long.parseLong(parts[1])),
+            (usage, saved) -> usage.plus(saved.bytes(), saved.versions()));
+      }
+    }
+  }
+
+  private static String key(Path relative) {
+    return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+  }
+}
@@ -0,0 +1,38 @@
+-- The tables of the metadata store, as the entities in com.ed.repository.metadata map them
+
+create sequence repo_file_seq start with 1 increment by 50;
+create sequence repo_uploader_seq start with 1 increment by 50;
+create sequence repo_version_seq start with 1 increment by 50;
+
+create table repo_file (
+  id bigint not null,
+  path varchar(768) not null,
+  directory varchar(768) not null,
+  latestVersion integer not null,
+  primary key (id)
+);
+create unique index uk_repo_file_path on repo_file (path);
+create index idx_repo_file_directory on repo_file (directory);
+
+create table repo_uploader (
+  id bigint not null,
+  name varchar(255) not null,
+  primary key (id)
+);
+create unique index uk_repo_uploader_name on repo_uploader (name);
+
+create table repo_version (
+  id bigint not null,
+  file_id bigint not null,
+  version integer not null,
+  uploader_id bigint not null,
+  digest varchar(64),
+  size bigint not null,
+  committedAt bigint not null,
+  primary key (id),
+  constraint fk_repo_version_file foreign key (file_id) references repo_file (id),
+  constraint fk_repo_version_uploader foreign key (uploader_id) references repo_uploader (id)
+);
+create unique index uk_repo_version_file on repo_version (file_id, version);
+create index idx_repo_version_uploader on repo_version (uploader_id);
+create index idx_repo_version_committed on repo_version (committedAt);
@@ -1,29 +1,85 @@
 package com.ed.repository;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.util.ResourceUtils;
+import com.ed.repository.dedup.ContentIndex;
+import com.ed.repository.dedup.UploadChallenge;
 import com.ed.repository.exceptions.FileVersionException;
+import com.ed.repository.feed.Change;
+import com.ed.repository.feed.ChangeFeed;
+import com.ed.repository.feed.ChangeListener;
+import com.ed.repository.exceptions.QuotaExceededException;
+import com.ed.repository.exceptions.RepositoryManagementException;
+import com.ed.repository.filesystem.ArchiveExporter;
+import com.ed.repository.filesystem.AsyncRepositoryManager;
+import com.ed.repository.filesystem.BulkImporter;
+import com.ed.repository.filesystem.ClientFileResolver;
+import com.ed.repository.filesystem.CommitEvent;
+import com.ed.repository.filesystem.CommitListener;
+import com.ed.repository.filesystem.CommitOption;
 import com.ed.repository.filesystem.FileSystemEnvironmentResolver;
 import com.ed.repository.filesystem.FileSystemRepositoryManager;
+import com.ed.repository.filesystem.IndexFileEntry;
 import com.ed.repository.filesystem.Pack;
 import com.ed.repository.filesystem.PathParser;
 import com.ed.repository.filesystem.RepositoryFileResolver;
 import com.ed.repository.filesystem.RepositoryManager;
+import com.ed.repository.filesystem.VersionCache;
+import com.ed.repository.filesystem.VersionWriter;
+import com.ed.repository.integrity.Digests;
+import com.ed.repository.integrity.IntegrityScrubber;
+import com.ed.repository.jfr.RecordingAnalyzer;
+import com.ed.repository.metadata.MetadataStore;
+import com.ed.repository.replication.MirrorReplicator;
+import com.ed.repository.replication.ReplicationLag;
+import com.ed.repository.search.FileHit;
+import com.ed.repository.search.Page;
+import com.ed.repository.search.RepositorySearchIndex;
+import com.ed.repository.search.VersionHit;
+import com.ed.repository.sharding.ShardRebalancer;
+import com.ed.repository.sharding.StorageRouter;
+import com.ed.repository.throttling.IoGovernor;
+import com.ed.repository.throttling.UserLimits;
+import com.ed.repository.tiering.ColdTier;
+import com.ed.repository.usage.Usage;
+import com.ed.repository.usage.UsageLedger;
 import com.ed.repository.utils.AppUtils;
 
 @TestInstance(Lifecycle.PER_CLASS)
@@ -33,11 +89,17 @@ public class FileSystemRepositoryManagerTest {
 
   static final String OUTPUT_TEST_1 = "output_tests_1/".replace("/", File.separator);
   static final String OUTPUT_TEST_2 = "output_tests_2/".replace("/", File.separator);
+  static final String OUTPUT_TEST_3 = "output_tests_3/".replace("/", File.separator);
+  static final String OUTPUT_TEST_4 = "output_tests_4/".replace("/", File.separator);
+  static final String OUTPUT_TEST_5 = "output_tests_5/".replace("/", File.separator);
 
   @BeforeAll // delete all output folders to start fresh
   public void init() throws IOException {
     deleteRepo(OUTPUT_TEST_1);
     deleteRepo(OUTPUT_TEST_2);
+    deleteRepo(OUTPUT_TEST_3);
+    deleteRepo(OUTPUT_TEST_4);
+    deleteRepo(OUTPUT_TEST_5);
   }
 
   private void deleteRepo(String repo) throws FileNotFoundException, IOException {
@@ -74,7 +136,8 @@ public class FileSystemRepositoryManagerTest {
     List<String> allIndexLines = Files.readAllLines(indexFile);
     Assertions.assertEquals(1, allIndexLines.size());
     String lineIndexFile = allIndexLines.get(0);
-    Assertions.assertEquals("1 : edam734", lineIndexFile);
+    Assertions.assertTrue(lineIndexFile
+        .matches("1 : edam734 : sha256=" + Digests.digest(file, null) + " : at=[0-9]+"));
 
     // created the file 'test1-v1.TXT'
     Path newFile = ResourceUtils
@@ -110,9 +173,13 @@ public class FileSystemRepositoryManagerTest {
     Assertions.assertTrue(Files.exists(indexFile));
     List<String> allIndexLines = Files.readAllLines(indexFile);
     Assertions.assertEquals(3, allIndexLines.size());
-    Assertions.assertEquals("1 : maria", allIndexLines.get(0));
-    Assertions.assertEquals("2 : johnny_cash", allIndexLines.get(1));
-    Assertions.assertEquals("3 : O'Brien", allIndexLines.get(2));
+    String digest = Digests.digest(file, null);
+    Assertions.assertTrue(
+        allIndexLines.get(0).matches("1 : maria : sha256=" + digest + " : at=[0-9]+"));
+    Assertions.assertTrue(
+        allIndexLines.get(1).matches("2 : johnny_cash : sha256=" + digest + " : at=[0-9]+"));
+    Assertions.assertTrue(
+        allIndexLines.get(2).matches("3 : O'Brien : sha256=" + digest + " : at=[0-9]+"));
 
     // created the file to the third version 'test2-v3.TXT'
     Path newFile = ResourceUtils
@@ -305,4 +372,1040 @@ public class FileSystemRepositoryManagerTest {
     // even dough, server's repo could have unversioned files
     Assertions.assertTrue(files.isEmpty());
   }
+
+  @Test
+  public void testExportSubfilesAsZip() throws IOException {
+    Path directory = ResourceUtils.getFile(INPUT_LOCATION + "edam734").toPath();
+    FileSystemRepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    repositoryManager.export(directory, out, ArchiveExporter.Format.ZIP);
+
+    List<String> names = new ArrayList<>();
+    byte[] content = null;
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        names.add(entry.getName());
+        if (entry.getName().equals("test2.TXT")) {
+          content = zip.readAllBytes();
+        }
+      }
+    }
+    names.sort(null);
+    Assertions.assertEquals(List.of("test2.TXT", "test3.TXT"), names);
+    Path latest = ResourceUtils.getFile(INPUT_LOCATION + "edam734/test2#TXT/test2-v3.TXT").toPath();
+    Assertions.assertArrayEquals(Files.readAllBytes(latest), content);
+  }
+
+  @Test
+  public void testReadPackContentTwice_ThenServedFromCache() throws IOException {
+    VersionCache cache = new VersionCache(1024, 1024);
+    VersionCache.setDefault(cache);
+    try {
+      Path file =
+          ResourceUtils.getFile(INPUT_LOCATION + "edam734/test3#TXT/test3-v1.TXT").toPath();
+      Pack pack = Pack.createPack(file);
+
+      for (int i = 0; i < 2; i++) {
+        try (InputStream in = pack.openContent()) {
+          Assertions.assertArrayEquals(Files.readAllBytes(file), in.readAllBytes());
+        }
+      }
+      Assertions.assertEquals(1, cache.getMisses());
+      Assertions.assertEquals(1, cache.getHits());
+      Assertions.assertEquals(Files.size(file), cache.getUsedBytes());
+
+      // a versions directory written again isn't served from the cache
+      Path rewritten = Path.of(OUTPUT_TEST_5, "cache-rewritten", "a#TXT", "a-v1.TXT");
+      Files.createDirectories(rewritten.getParent());
+      Files.writeString(rewritten, "before");
+      try (InputStream in = Pack.createPack(rewritten).openContent()) {
+        Assertions.assertEquals("before", new String(in.readAllBytes()));
+      }
+      AppUtils.deleteDirectory(rewritten.getParent());
+      Files.createDirectories(rewritten.getParent());
+      Files.writeString(rewritten, "and after");
+      try (InputStream in = Pack.createPack(rewritten).openContent()) {
+        Assertions.assertEquals("and after", new String(in.readAllBytes()));
+      }
+    } finally {
+      VersionCache.setDefault(new VersionCache(64L * 1024 * 1024, 1024 * 1024));
+    }
+  }
+
+  @Test
+  public void testReadBigFile_butHotterEntryInTheWay_ThenNothingIsEvicted() throws IOException {
+    Path directory = Path.of(OUTPUT_TEST_5, "cache");
+    Map<String, Integer> sizes = Map.of("cold", 10, "hot", 10, "big", 20);
+    Map<String, Pack> packs = new HashMap<>();
+    for (Map.Entry<String, Integer> file : sizes.entrySet()) {
+      Path version = directory.resolve(file.getKey() + "#TXT").resolve(file.getKey() + "-v1.TXT");
+      Files.createDirectories(version.getParent());
+      Files.write(version, new byte[file.getValue()]);
+      packs.put(file.getKey(), Pack.createPack(version));
+    }
+    VersionCache cache = new VersionCache(20, 20);
+    VersionCache.setDefault(cache);
+    try {
+      for (String file : List.of("cold", "hot", "hot", "hot", "hot", "big", "big")) {
+        try (InputStream in = packs.get(file).openContent()) {
+          Assertions.assertEquals((int) sizes.get(file), in.readAllBytes().length);
+        }
+      }
+      // the big file would have to evict both, and "hot" is read more often
+      Assertions.assertEquals(0, cache.getEvictions());
+      Assertions.assertEquals(20, cache.getUsedBytes());
+      packs.get("cold").openContent().close();
+      Assertions.assertEquals(4, cache.getHits());
+    } finally {
+      VersionCache.setDefault(new VersionCache(64L * 1024 * 1024, 1024 * 1024));
+    }
+  }
+
+  @Test
+  public void testPutAllAsync_ThenEveryUploadGetsItsOwnVersion() throws IOException {
+    Path file = ResourceUtils.getFile(INPUT_LOCATION + "test3.TXT").toPath();
+    Path target = Path.of(OUTPUT_TEST_3, file.toString());
+    List<AsyncRepositoryManager.Upload> uploads = new ArrayList<>();
+    for (String username : List.of("maria", "johnny_cash", "O'Brien")) {
+      uploads.add(new AsyncRepositoryManager.Upload(new FileInputStream(file.toString()), target,
+          username));
+    }
+
+    ExecutorService executor = AsyncRepositoryManager.boundedIoPool(3, 10);
+    AsyncRepositoryManager repositoryManager =
+        new AsyncRepositoryManager(new FileSystemRepositoryManager(), executor);
+    List<Boolean> results = repositoryManager.putAll(uploads).join();
+    executor.shutdown();
+
+    Assertions.assertEquals(List.of(true, true, true), results);
+    Path indexFile = ResourceUtils
+        .getFile(OUTPUT_TEST_3 + "repo/test3#TXT/test3.index.txt".replace("/", File.separator))
+        .toPath();
+    List<String> allIndexLines = Files.readAllLines(indexFile);
+    Assertions.assertEquals(3, allIndexLines.size());
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertTrue(allIndexLines.get(i).startsWith((i + 1) + " : "));
+    }
+  }
+
+  @Test
+  public void testPutWithContentLength_butClientAnnouncedMoreBytes() throws IOException {
+    byte[] content = new byte[3 * 4096 + 100];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    Path target = Path.of(OUTPUT_TEST_5, "repo", "large.bin");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    VersionWriter.setBufferSize(4096);
+    try {
+      Assertions.assertThrows(RepositoryManagementException.class, () -> repositoryManager
+          .put(new ByteArrayInputStream(content), target, "maria", 2L * content.length));
+      Assertions.assertThrows(RepositoryManagementException.class, () -> repositoryManager
+          .put(new ByteArrayInputStream(content), target, "maria", content.length - 1));
+      Assertions.assertTrue(repositoryManager.put(new ByteArrayInputStream(content), target,
+          "maria", content.length));
+    } finally {
+      VersionWriter.setBufferSize(1024 * 1024);
+    }
+
+    Path versionsDirectory = Path.of(OUTPUT_TEST_5, "repo", "large#BIN");
+    Assertions.assertArrayEquals(content,
+        Files.readAllBytes(versionsDirectory.resolve("large-v1.bin")));
+    try (var files = Files.list(versionsDirectory)) {
+      Assertions.assertEquals(2, files.count()); // no temporary file left behind
+    }
+  }
+
+  @Test
+  public void testRemoveLeftovers_ThenOnlyTemporaryFilesAreDeleted() throws IOException {
+    Path root = Path.of(OUTPUT_TEST_5, "crashed");
+    new FileSystemRepositoryManager().put(new ByteArrayInputStream("version 1".getBytes()),
+        root.resolve("data.TXT"), "maria");
+    Path versionsDirectory = root.resolve("data#TXT");
+    // what an upload and an index rewrite leave when the server dies
+    Files.writeString(versionsDirectory.resolve(".upload-1234.tmp"), "half an upl");
+    Files.writeString(versionsDirectory.resolve(".index-1234.tmp"), "1 : maria");
+
+    Assertions.assertEquals(0, VersionWriter.removeLeftovers(root, Duration.ofHours(1)));
+    Assertions.assertEquals(2, VersionWriter.removeLeftovers(root, Duration.ZERO));
+    try (var files = Files.list(versionsDirectory)) {
+      Assertions.assertEquals(List.of("data-v1.TXT", "data.index.txt"),
+          files.map(file -> file.getFileName().toString()).sorted().toList());
+    }
+  }
+
+  @Test
+  public void testMigrateOldVersions_ThenReadThemFromColdTier() throws IOException {
+    Path hotRoot = Path.of(OUTPUT_TEST_5, "tiered");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    for (int i = 1; i <= 3; i++) {
+      repositoryManager.put(new ByteArrayInputStream(("version " + i).getBytes()),
+          hotRoot.resolve("data.TXT"), "maria");
+    }
+    ColdTier tier = new ColdTier(hotRoot, Path.of(OUTPUT_TEST_5, "cold"),
+        new ColdTier.Policy(Duration.ZERO, 0, 1));
+    ColdTier.setDefault(tier);
+    try {
+      ColdTier.MigrationReport report = tier.migrate();
+      Assertions.assertEquals(2, report.versionsMoved());
+      Path versionsDirectory = hotRoot.resolve("data#TXT");
+      Assertions.assertFalse(Files.exists(versionsDirectory.resolve("data-v1.TXT")));
+      Assertions.assertEquals(3,
+          FileSystemEnvironmentResolver.listVersions(versionsDirectory).size());
+
+      Pack pack = FileSystemEnvironmentResolver.getFile(versionsDirectory, 1);
+      Assertions.assertTrue(ColdTier.isCompressed(pack.getContent()));
+      try (InputStream in = pack.openContent(true)) {
+        Assertions.assertEquals("version 1", new String(in.readAllBytes()));
+      }
+      Assertions.assertEquals("version 1".length(), pack.getSize());
+
+      // the cold versions count with the size they were uploaded with
+      UsageLedger ledger = new UsageLedger(hotRoot, Path.of(OUTPUT_TEST_5, "tiered-usage.txt"));
+      ledger.rebuild();
+      Assertions.assertEquals(new Usage(3 * "version 1".length(), 3), ledger.getUsage(hotRoot));
+
+      tier.setPromoteOnRead(true);
+      pack = FileSystemEnvironmentResolver.getFile(versionsDirectory, 2);
+      Assertions.assertEquals(versionsDirectory.resolve("data-v2.TXT"), pack.getContent());
+      Assertions.assertEquals(1, tier.listColdVersions(versionsDirectory).size());
+    } finally {
+      ColdTier.setDefault(null);
+    }
+  }
+
+  @Test
+  public void testMigrateShardedRoot_butOneDirectoryIsUnreadable_ThenTheOthersAreMigrated()
+      throws IOException {
+    Path logicalRoot = Path.of(OUTPUT_TEST_5, "tiered-sharded");
+    StorageRouter router = new StorageRouter(logicalRoot,
+        List.of(Path.of(OUTPUT_TEST_5, "tiered-shard-a"), Path.of(OUTPUT_TEST_5, "tiered-shard-b")));
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    ColdTier tier = new ColdTier(logicalRoot, Path.of(OUTPUT_TEST_5, "tiered-sharded-cold"),
+        new ColdTier.Policy(Duration.ZERO, 0, 1));
+    StorageRouter.setDefault(router);
+    ColdTier.setDefault(tier);
+    try {
+      for (String file : List.of("maria/a.TXT", "john/a.TXT", "john/b.TXT")) {
+        for (int i = 1; i <= 2; i++) {
+          repositoryManager.put(new ByteArrayInputStream(("version " + i).getBytes()),
+              logicalRoot.resolve(file), "maria");
+        }
+      }
+      Path broken = new ClientFileResolver(logicalRoot.resolve("john/b.TXT")).getIndexFilePath();
+      Files.delete(broken);
+      Files.createDirectory(broken);
+
+      Assertions.assertEquals(2, tier.migrate().versionsMoved());
+      Path versionsDirectory =
+          new ClientFileResolver(logicalRoot.resolve("maria/a.TXT")).getRepositoryDirectoryPath();
+      Assertions.assertEquals(List.of(1),
+          List.copyOf(tier.listColdVersions(versionsDirectory).keySet()));
+      try (InputStream in = FileSystemEnvironmentResolver.getFile(versionsDirectory, 1)
+          .openContent(true)) {
+        Assertions.assertEquals("version 1", new String(in.readAllBytes()));
+      }
+    } finally {
+      ColdTier.setDefault(null);
+      StorageRouter.setDefault(StorageRouter.NONE);
+    }
+  }
+
+  @Test
+  public void testRecordWithSettings_ThenEveryTraversalIsRecorded() throws Exception {
+    Path directory = Path.of(OUTPUT_TEST_5, "recorded");
+    FileSystemRepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    for (String file : List.of("a.TXT", "docs/b.TXT")) {
+      repositoryManager.put(new ByteArrayInputStream(file.getBytes()), directory.resolve(file),
+          "maria");
+    }
+    Path recordingFile = Path.of(OUTPUT_TEST_5, "recorded.jfr");
+    Configuration settings =
+        Configuration.create(ResourceUtils.getFile("classpath:jfr/edrepository.jfc").toPath());
+    List<Pack> packs;
+    try (Recording recording = new Recording(settings)) {
+      recording.start();
+      packs = repositoryManager.get(directory);
+      Assertions.assertEquals(2, packs.size());
+      Assertions.assertEquals(2, FileSystemEnvironmentResolver.findVersionDirectories(directory)
+          .size());
+      try (InputStream in = repositoryManager.download(packs.get(0), "john")) {
+        in.readAllBytes();
+      }
+      recording.stop();
+      recording.dump(recordingFile);
+    }
+
+    String prefix = directory.toString();
+    Map<String, Integer> counts = new HashMap<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+      String name = event.getEventType().getName();
+      String path = name.equals("com.ed.repository.DirectoryHit") ? event.getString("directory")
+          : name.equals("com.ed.repository.IndexFile") ? event.getString("file") : null;
+      if (path != null && path.startsWith(prefix)) {
+        counts.merge(name, 1, Integer::sum);
+      }
+    }
+    // one hit from the get and one from the walk for each file, however fast they were
+    Assertions.assertEquals(4, (int) counts.get("com.ed.repository.DirectoryHit"));
+    Assertions.assertEquals(2, (int) counts.get("com.ed.repository.IndexFile"));
+
+    // the download is counted for who read it, with what was read
+    RecordingAnalyzer analyzer = new RecordingAnalyzer();
+    analyzer.read(recordingFile);
+    RecordingAnalyzer.Summary john = analyzer.slowestUsers(Integer.MAX_VALUE).stream()
+        .filter(summary -> summary.getKey().equals("john")).findFirst().orElseThrow();
+    Assertions.assertEquals(1, john.getCount());
+    Assertions.assertEquals(packs.get(0).getSize(), john.getBytes());
+  }
+
+  @Test
+  public void testReplicate_butMirrorIsDown_ThenCatchUpWhenItIsBack() throws Exception {
+    Path sourceRoot = Path.of(OUTPUT_TEST_5, "replicated");
+    Path mirrorRoot = Path.of(OUTPUT_TEST_5, "mirror");
+    Files.createDirectories(sourceRoot);
+    Files.writeString(mirrorRoot, "not a directory"); // every copy to the mirror fails
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    try (MirrorReplicator replicator = new MirrorReplicator(sourceRoot, List.of(mirrorRoot))) {
+      replicator.start();
+      repositoryManager.put(new ByteArrayInputStream("version 1".getBytes()),
+          sourceRoot.resolve("data.TXT"), "maria");
+      Path versionsDirectory = sourceRoot.resolve("data#TXT");
+      Assertions.assertFalse(replicator.awaitReplication(200, TimeUnit.MILLISECONDS));
+      ReplicationLag lag = replicator.getLag(versionsDirectory);
+      Assertions.assertEquals(1, lag.versions());
+      Assertions.assertEquals(0, lag.failedVersions());
+
+      Files.delete(mirrorRoot);
+      Assertions.assertTrue(replicator.awaitReplication(10, TimeUnit.SECONDS));
+      Assertions.assertEquals(0, replicator.getLag(versionsDirectory).versions());
+      Assertions.assertTrue(replicator.getLags().isEmpty()); // fully replicated files are dropped
+      Assertions.assertEquals("version 1",
+          Files.readString(mirrorRoot.resolve("data#TXT").resolve("data-v1.TXT")));
+      Assertions.assertTrue(replicator.getFailures().isEmpty());
+    }
+  }
+
+  @Test
+  public void testReplicate_butVersionIsGone_ThenGiveUpOnIt() throws Exception {
+    Path sourceRoot = Path.of(OUTPUT_TEST_5, "replicated-lost");
+    Path mirrorRoot = Path.of(OUTPUT_TEST_5, "mirror-lost");
+    Files.createDirectories(sourceRoot);
+    Files.writeString(mirrorRoot, "not a directory");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    try (MirrorReplicator replicator = new MirrorReplicator(sourceRoot, List.of(mirrorRoot))) {
+      replicator.start();
+      for (int i = 1; i <= 2; i++) {
+        repositoryManager.put(new ByteArrayInputStream(("version " + i).getBytes()),
+            sourceRoot.resolve("data.TXT"), "maria");
+      }
+      Path versionsDirectory = sourceRoot.resolve("data#TXT");
+      Files.delete(versionsDirectory.resolve("data-v1.TXT"));
+      Files.delete(mirrorRoot);
+
+      Assertions.assertTrue(replicator.awaitReplication(10, TimeUnit.SECONDS));
+      List<MirrorReplicator.Failure> failures = replicator.getFailures();
+      Assertions.assertEquals(1, failures.size());
+      Assertions.assertEquals(1, failures.get(0).version());
+      ReplicationLag lag = replicator.getLag(versionsDirectory);
+      Assertions.assertEquals(0, lag.versions());
+      Assertions.assertEquals(1, lag.failedVersions());
+      // the mirror's index only lists the version it has
+      List<IndexFileEntry> entries =
+          IndexFileEntry.readEntries(mirrorRoot.resolve("data#TXT").resolve("data.index.txt"));
+      Assertions.assertEquals(1, entries.size());
+      Assertions.assertEquals(2, entries.get(0).getKey());
+    }
+  }
+
+  @Test
+  public void testCopyDirectory_ThenVersionsAreLinked() throws IOException {
+    Path source = ResourceUtils.getFile(INPUT_LOCATION + "edam734").toPath();
+    Path destination = Path.of(OUTPUT_TEST_5, "fork", "edam734");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+
+    Assertions.assertEquals(2, repositoryManager.copy(source, destination));
+    for (String file : List.of("test2#TXT/test2.index.txt", "test3#TXT/test3.index.txt")) {
+      Assertions.assertEquals(Files.readAllLines(source.resolve(file)),
+          Files.readAllLines(destination.resolve(file)));
+    }
+    Path version = Path.of("test2#TXT", "test2-v3.TXT");
+    Assertions.assertTrue(Files.isSameFile(source.resolve(version), destination.resolve(version)));
+    Assertions.assertThrows(RepositoryManagementException.class,
+        () -> repositoryManager.copy(source, destination));
+  }
+
+  @Test
+  public void testCopyFileToAnotherName_ThenVersionsAreRenamed() throws IOException {
+    Path source = ResourceUtils.getFile(INPUT_LOCATION + "edam734/test2.TXT").toPath();
+    Path destination = Path.of(OUTPUT_TEST_5, "fork-file", "renamed.TXT");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+
+    Assertions.assertEquals(1, repositoryManager.copy(source, destination));
+    Path versionsDirectory = Path.of(OUTPUT_TEST_5, "fork-file", "renamed#TXT");
+    try (var files = Files.list(versionsDirectory)) {
+      Assertions.assertEquals(
+          List.of("renamed-v1.TXT", "renamed-v2.TXT", "renamed-v3.TXT", "renamed.index.txt"),
+          files.map(file -> file.getFileName().toString()).sorted().toList());
+    }
+    Assertions.assertEquals(
+        Files.readAllLines(source.resolveSibling("test2#TXT").resolve("test2.index.txt")),
+        Files.readAllLines(versionsDirectory.resolve("renamed.index.txt")));
+    Pack latest = repositoryManager.get(destination.getParent()).get(0);
+    Assertions.assertEquals(destination, latest.getDestination());
+  }
+
+  @Test
+  public void testCopyDirectory_butOneVersionIsUnreadable_ThenNothingIsCopied()
+      throws IOException {
+    Path hotRoot = Path.of(OUTPUT_TEST_5, "copy-failing");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    for (String file : List.of("a.TXT", "b.TXT", "b.TXT")) {
+      repositoryManager.put(new ByteArrayInputStream(file.getBytes()),
+          hotRoot.resolve("source").resolve(file), "maria");
+    }
+    ColdTier tier = new ColdTier(hotRoot, Path.of(OUTPUT_TEST_5, "copy-failing-cold"),
+        new ColdTier.Policy(Duration.ZERO, 0, 1));
+    ColdTier.setDefault(tier);
+    try {
+      Assertions.assertEquals(1, tier.migrate().versionsMoved());
+      Path coldVersion = tier.listColdVersions(hotRoot.resolve("source/b#TXT")).get(1);
+      Files.writeString(coldVersion, "not gzip");
+
+      Path destination = hotRoot.resolve("copy");
+      Assertions.assertThrows(RepositoryManagementException.class,
+          () -> repositoryManager.copy(hotRoot.resolve("source"), destination));
+      Assertions.assertFalse(Files.exists(destination));
+    } finally {
+      ColdTier.setDefault(null);
+    }
+  }
+
+  @Test
+  public void testCopyDirectory_whileUploadingElsewhere_ThenUploadDoesNotWait() throws Exception {
+    Path copyRoot = Path.of(OUTPUT_TEST_5, "copy-busy");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    repositoryManager.put(new ByteArrayInputStream("a".getBytes()),
+        copyRoot.resolve("source/a.TXT"), "maria");
+    // the copy announces its versions before it lets go of its locks
+    CompletableFuture<Boolean> upload = new CompletableFuture<>();
+    CommitListener listener = event -> {
+      if (event.clientPath().toString().contains("copy-busy" + File.separator + "copy")) {
+        upload.completeAsync(() -> repositoryManager.put(
+            new ByteArrayInputStream("b".getBytes()), copyRoot.resolve("other/b.TXT"), "john"));
+        try {
+          upload.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+          upload.completeExceptionally(e);
+        }
+      }
+    };
+    FileSystemEnvironmentResolver.addCommitListener(listener);
+    try {
+      Assertions.assertEquals(1,
+          repositoryManager.copy(copyRoot.resolve("source"), copyRoot.resolve("copy")));
+    } finally {
+      FileSystemEnvironmentResolver.removeCommitListener(listener);
+    }
+    Assertions.assertTrue(upload.get());
+  }
+
+  @Test
+  public void testCopyDirectory_withColdVersion_ThenCommitTimesAreKept() throws IOException {
+    Path hotRoot = Path.of(OUTPUT_TEST_5, "copy-times");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    for (String content : List.of("first", "second")) {
+      repositoryManager.put(new ByteArrayInputStream(content.getBytes()),
+          hotRoot.resolve("source/a.TXT"), "maria");
+    }
+    // the first version was committed before the index files recorded the time
+    Path versionsDirectory = hotRoot.resolve("source/a#TXT");
+    Path indexFile = versionsDirectory.resolve("a.index.txt");
+    List<IndexFileEntry> entries = IndexFileEntry.readEntries(indexFile);
+    Files.write(indexFile, List.of(
+        IndexFileEntry.format(new IndexFileEntry(1, "maria", entries.get(0).getDigest())),
+        IndexFileEntry.format(entries.get(1))));
+    Files.setLastModifiedTime(versionsDirectory.resolve("a-v1.TXT"), FileTime.fromMillis(1_000));
+    ColdTier tier = new ColdTier(hotRoot, Path.of(OUTPUT_TEST_5, "copy-times-cold"),
+        new ColdTier.Policy(Duration.ZERO, 0, 1));
+    ColdTier.setDefault(tier);
+    List<CommitEvent> events = new ArrayList<>();
+    CommitListener listener = events::add;
+    FileSystemEnvironmentResolver.addCommitListener(listener);
+    try {
+      Assertions.assertEquals(1, tier.migrate().versionsMoved());
+      Assertions.assertEquals(1,
+          repositoryManager.copy(hotRoot.resolve("source"), hotRoot.resolve("copy")));
+
+      Assertions.assertEquals(List.of(1_000L, entries.get(1).getTimestamp()),
+          events.stream().map(CommitEvent::timestamp).toList());
+      Assertions.assertEquals(1_000, Files
+          .getLastModifiedTime(hotRoot.resolve("copy/a#TXT/a-v1.TXT")).toMillis());
+    } finally {
+      FileSystemEnvironmentResolver.removeCommitListener(listener);
+      ColdTier.setDefault(null);
+    }
+  }
+
+  @Test
+  public void testSubscribeToPrefix_ThenReceiveOnlyItsCommits() throws Exception {
+    Path feedRoot = Path.of(OUTPUT_TEST_5, "feed");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    BlockingQueue<Change> received = new LinkedBlockingQueue<>();
+    try (ChangeFeed feed = new ChangeFeed(16)) {
+      feed.start();
+      ChangeFeed.Subscription subscription =
+          feed.subscribe(feedRoot.resolve("maria"), received::add);
+      for (String file : List.of("maria/a.TXT", "john/b.TXT", "maria/docs/a.TXT")) {
+        repositoryManager.put(new ByteArrayInputStream(file.getBytes()), feedRoot.resolve(file),
+            "maria");
+      }
+
+      Change first = received.poll(5, TimeUnit.SECONDS);
+      Change second = received.poll(5, TimeUnit.SECONDS);
+      Assertions.assertEquals(feedRoot.resolve("maria/a.TXT"), first.clientPath());
+      Assertions.assertEquals(feedRoot.resolve("maria/docs/a.TXT"), second.clientPath());
+      Assertions.assertEquals(1, second.version());
+      Assertions.assertEquals("maria", second.uploader());
+      Assertions.assertTrue(second.toServerSentEvent().startsWith("id: " + second.sequence()));
+      subscription.close();
+
+      // a client that reconnects resumes after the last change it saw
+      BlockingQueue<Change> resumed = new LinkedBlockingQueue<>();
+      feed.subscribe(feedRoot, first.sequence(), resumed::add);
+      Assertions.assertEquals(feedRoot.resolve("john/b.TXT"),
+          resumed.poll(5, TimeUnit.SECONDS).clientPath());
+      Assertions.assertEquals(second, resumed.poll(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testSubscribe_butFeedWasRestarted_ThenTellWhatWasMissed() throws Exception {
+    Path feedRoot = Path.of(OUTPUT_TEST_5, "feed-restarted");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    long lastSeen;
+    try (ChangeFeed feed = new ChangeFeed(16)) {
+      feed.start();
+      repositoryManager.put(new ByteArrayInputStream("a".getBytes()),
+          feedRoot.resolve("maria/a.TXT"), "maria");
+      lastSeen = feed.getLastSequence();
+    }
+
+    BlockingQueue<Change> received = new LinkedBlockingQueue<>();
+    BlockingQueue<Long> missed = new LinkedBlockingQueue<>();
+    try (ChangeFeed feed = new ChangeFeed(16)) {
+      feed.start();
+      feed.subscribe(feedRoot, lastSeen, new ChangeListener() {
+        @Override
+        public void changed(Change change) {
+          received.add(change);
+        }
+
+        @Override
+        public void missed(long fromSequence, long toSequence) {
+          missed.add(fromSequence);
+        }
+      });
+      Assertions.assertNotNull(missed.poll(5, TimeUnit.SECONDS));
+      repositoryManager.put(new ByteArrayInputStream("b".getBytes()),
+          feedRoot.resolve("maria/b.TXT"), "maria");
+      Assertions.assertEquals(feedRoot.resolve("maria/b.TXT"),
+          received.poll(5, TimeUnit.SECONDS).clientPath());
+    }
+  }
+
+  @Test
+  public void testFollowCommits_ThenQueryMetadataStore() throws IOException {
+    Path storeRoot = Path.of(OUTPUT_TEST_5, "metadata");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    try (MetadataStore store = MetadataStore
+        .create(new DriverManagerDataSource("jdbc:h2:mem:metadata;DB_CLOSE_DELAY=-1"))) {
+      store.start();
+      for (String username : List.of("maria", "john")) {
+        repositoryManager.put(new ByteArrayInputStream(username.getBytes()),
+            storeRoot.resolve("a.TXT"), username);
+      }
+      repositoryManager.put(new ByteArrayInputStream("b".getBytes()), storeRoot.resolve("b.TXT"),
+          "john");
+
+      Assertions.assertEquals(List.of(storeRoot.resolve("a.TXT").toAbsolutePath(),
+          storeRoot.resolve("b.TXT").toAbsolutePath()), store.list(storeRoot));
+      Assertions.assertEquals(2, store.getLatestVersion(storeRoot.resolve("a.TXT")));
+      List<IndexFileEntry> history = store.history(storeRoot.resolve("a.TXT"));
+      Assertions.assertEquals(List.of("maria", "john"),
+          history.stream().map(IndexFileEntry::getValue).toList());
+      Assertions.assertEquals(Digests.toHex(Digests.newDigest().digest("john".getBytes())),
+          history.get(1).getDigest());
+      Assertions.assertEquals(List.of(storeRoot.resolve("a.TXT").toAbsolutePath()),
+          store.findByUploader("maria"));
+
+      // built again from the index files, the store has the same versions
+      store.rebuild(List.of(storeRoot));
+      Assertions.assertEquals(2, store.history(storeRoot.resolve("a.TXT")).size());
+      Assertions.assertEquals(1, store.getLatestVersion(storeRoot.resolve("b.TXT")));
+
+      // the manager reads from the store, and finds what the directories have
+      List<Pack> walked = repositoryManager.get(storeRoot);
+      MetadataStore.setDefault(store);
+      try {
+        Assertions.assertEquals(walked, repositoryManager.get(storeRoot));
+        Assertions.assertEquals(
+            List.of(Pack.createPack(storeRoot.resolve("a#TXT").resolve("a-v1.TXT"))),
+            repositoryManager.get(storeRoot, history.get(0).getTimestamp()));
+        Assertions.assertEquals(List.of("maria", "john"),
+            repositoryManager.history(storeRoot.resolve("a.TXT")).stream()
+                .map(IndexFileEntry::getValue).toList());
+      } finally {
+        MetadataStore.setDefault(null);
+      }
+    }
+  }
+
+  @Test
+  public void testGetAsOf_ThenReturnVersionsOfThatTime() throws Exception {
+    Path snapshotRoot = Path.of(OUTPUT_TEST_5, "snapshot");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    List<Long> timestamps = List.of(1_000L, 2_000L, 3_000L);
+    for (String file : List.of("a.TXT", "a.TXT", "b.TXT")) {
+      repositoryManager.put(new ByteArrayInputStream(file.getBytes()), snapshotRoot.resolve(file),
+          "maria");
+    }
+    // each version committed at its own time, in the order above
+    int committed = 0;
+    for (String file : List.of("a.TXT", "b.TXT")) {
+      Path indexFile = new ClientFileResolver(snapshotRoot.resolve(file)).getIndexFilePath();
+      List<String> lines = new ArrayList<>();
+      for (IndexFileEntry entry : IndexFileEntry.readEntries(indexFile)) {
+        lines.add(IndexFileEntry.format(new IndexFileEntry(entry.getKey(), entry.getValue(),
+            entry.getDigest(), timestamps.get(committed++))));
+      }
+      Files.write(indexFile, lines);
+    }
+
+    Assertions.assertEquals(List.of(), repositoryManager.get(snapshotRoot, timestamps.get(0) - 1));
+    Assertions.assertEquals(
+        List.of(Pack.createPack(snapshotRoot.resolve("a#TXT").resolve("a-v1.TXT"))),
+        repositoryManager.get(snapshotRoot, timestamps.get(1) - 1));
+    List<Pack> latest = repositoryManager.get(snapshotRoot, timestamps.get(2));
+    Assertions.assertEquals(2, latest.size());
+    Assertions.assertTrue(
+        latest.contains(Pack.createPack(snapshotRoot.resolve("a#TXT").resolve("a-v2.TXT"))));
+  }
+
+  @Test
+  public void testOfferKnownDigest_ThenVersionIsRecordedWithoutUpload() throws IOException {
+    Path dedupRoot = Path.of(OUTPUT_TEST_5, "dedup");
+    byte[] content = "the same content, uploaded twice".getBytes();
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    repositoryManager.put(new ByteArrayInputStream(content), dedupRoot.resolve("a.TXT"), "maria");
+    String digest = Digests.digest(new ByteArrayInputStream(content), null);
+    ContentIndex contentIndex = new ContentIndex();
+    contentIndex.start(List.of(dedupRoot));
+    ContentIndex.setDefault(contentIndex);
+    try {
+      // a content that isn't stored is challenged as well, but can't be proven
+      byte[] unknown = "unknown".getBytes();
+      UploadChallenge decoy = repositoryManager.offer(dedupRoot.resolve("b.TXT"), "john",
+          Digests.digest(new ByteArrayInputStream(unknown), null), unknown.length);
+      Assertions.assertFalse(repositoryManager.putByDigest(decoy.id(),
+          decoy.prove(new ByteArrayInputStream(unknown))));
+
+      UploadChallenge wrong =
+          repositoryManager.offer(dedupRoot.resolve("b.TXT"), "john", digest, content.length);
+      Assertions.assertFalse(repositoryManager.putByDigest(wrong.id(), digest));
+      Assertions.assertFalse(Files.exists(dedupRoot.resolve("b#TXT")));
+
+      UploadChallenge challenge =
+          repositoryManager.offer(dedupRoot.resolve("b.TXT"), "john", digest, content.length);
+      Assertions.assertTrue(repositoryManager.putByDigest(challenge.id(),
+          challenge.prove(new ByteArrayInputStream(content))));
+      Assertions.assertFalse(repositoryManager.putByDigest(challenge.id(),
+          challenge.prove(new ByteArrayInputStream(content))));
+
+      // a user can only have so many challenges pending
+      for (int i = 0; i < 16; i++) {
+        Assertions.assertNotNull(
+            repositoryManager.offer(dedupRoot.resolve("c.TXT"), "john", digest, content.length));
+      }
+      Assertions.assertNull(
+          repositoryManager.offer(dedupRoot.resolve("c.TXT"), "john", digest, content.length));
+      Assertions.assertNotNull(
+          repositoryManager.offer(dedupRoot.resolve("c.TXT"), "maria", digest, content.length));
+    } finally {
+      ContentIndex.setDefault(null);
+      contentIndex.close();
+    }
+    Path version = dedupRoot.resolve("b#TXT").resolve("b-v1.TXT");
+    Assertions.assertTrue(
+        Files.isSameFile(dedupRoot.resolve("a#TXT").resolve("a-v1.TXT"), version));
+    Path indexFile = new ClientFileResolver(dedupRoot.resolve("b.TXT")).getIndexFilePath();
+    IndexFileEntry entry = IndexFileEntry.readEntry(indexFile);
+    Assertions.assertEquals("john", entry.getValue());
+    Assertions.assertEquals(digest, entry.getDigest());
+  }
+
+  @Test
+  public void testImportTree_ThenResumeFromCheckpoint() throws IOException {
+    Path source = Path.of(OUTPUT_TEST_5, "import-source");
+    Path destination = Path.of(OUTPUT_TEST_5, "imported");
+    Path checkpoint = Path.of(OUTPUT_TEST_5, "import.checkpoint");
+    Files.createDirectories(source.resolve("docs"));
+    for (String file : List.of("a.TXT", "docs/b.TXT", "docs/c.TXT")) {
+      Files.writeString(source.resolve(file), file);
+    }
+    BulkImporter importer = new BulkImporter(2, 1);
+
+    BulkImporter.Progress progress = importer.importTree(source, destination, "maria", checkpoint);
+    Assertions.assertEquals(3, progress.files());
+    Assertions.assertEquals(0, progress.failed());
+    Assertions.assertEquals(3, Files.readAllLines(checkpoint).size());
+    Path version = destination.resolve("docs/b#TXT/b-v1.TXT");
+    Assertions.assertFalse(Files.isSameFile(source.resolve("docs/b.TXT"), version));
+    IndexFileEntry entry =
+        IndexFileEntry.readEntry(destination.resolve("docs/b#TXT/b.index.txt"));
+    Assertions.assertEquals("maria", entry.getValue());
+    Assertions.assertEquals(Digests.digest(version, null), entry.getDigest());
+
+    // a file that was imported but not checkpointed before a crash isn't imported twice
+    Files.write(checkpoint, List.of("a.TXT"));
+    progress = importer.importTree(source, destination, "maria", checkpoint);
+    Assertions.assertEquals(0, progress.files());
+    Assertions.assertEquals(3, progress.skipped());
+    Assertions.assertFalse(Files.exists(destination.resolve("docs/c#TXT/c-v2.TXT")));
+
+    // a version uploaded after the importer looked isn't stacked on
+    Assertions.assertThrows(FileAlreadyExistsException.class,
+        () -> FileSystemEnvironmentResolver.linkVersion(source.resolve("a.TXT"),
+            destination.resolve("a.TXT"), "maria", Digests.digest(source.resolve("a.TXT"), null),
+            CommitOption.FIRST_VERSION_ONLY));
+    Assertions.assertEquals(1,
+        IndexFileEntry.readEntries(destination.resolve("a#TXT/a.index.txt")).size());
+
+    // when asked to, the versions are links to the source files
+    importer.setLink(true);
+    Path linked = Path.of(OUTPUT_TEST_5, "imported-linked");
+    Assertions.assertEquals(3, importer.importTree(source, linked, "maria", null).files());
+    Assertions.assertTrue(
+        Files.isSameFile(source.resolve("docs/b.TXT"), linked.resolve("docs/b#TXT/b-v1.TXT")));
+  }
+
+  @Test
+  public void testDownloadTwice_butUserCanOnlyRunOneOperation() throws IOException {
+    IoGovernor governor = new IoGovernor();
+    governor.setLimits("edam734", new UserLimits(1, 0));
+    IoGovernor.setDefault(governor);
+    Path file = ResourceUtils.getFile(INPUT_LOCATION + "edam734/test3#TXT/test3-v2.TXT").toPath();
+    Pack pack = Pack.createPack(file);
+    FileSystemRepositoryManager repositoryManager = new FileSystemRepositoryManager();
+
+    try (InputStream in = repositoryManager.download(pack, "edam734")) {
+      Assertions.assertThrows(RepositoryManagementException.class,
+          () -> repositoryManager.download(pack, "edam734"));
+      Assertions.assertArrayEquals(Files.readAllBytes(file), in.readAllBytes());
+    } finally {
+      IoGovernor.setDefault(new IoGovernor());
+    }
+    Assertions.assertEquals(1, governor.getMetrics("edam734").admitted());
+    Assertions.assertEquals(1, governor.getMetrics("edam734").rejected());
+    Assertions.assertEquals(0, governor.getMetrics("edam734").active());
+  }
+
+  @Test
+  public void testDownloadOverUserLimit_ThenBytesFlowAtTheLimit() throws IOException {
+    IoGovernor governor = new IoGovernor();
+    governor.setLimits("edam734", new UserLimits(0, 512 * 1024));
+
+    long start = System.nanoTime();
+    try (IoGovernor.Permit permit = governor.admit("edam734");
+        InputStream in = permit.throttle(new ByteArrayInputStream(new byte[1024 * 1024]))) {
+      Assertions.assertEquals(1024 * 1024, in.readAllBytes().length);
+    }
+    // the first second worth of bytes is a burst, the other half a megabyte takes a second
+    double seconds = (System.nanoTime() - start) / 1e9;
+    Assertions.assertTrue(seconds > 0.8 && seconds < 3, "took " + seconds + "s");
+    Assertions.assertTrue(governor.getMetrics("edam734").throttledNanos() > 0);
+  }
+
+  @Test
+  public void testShareGlobalBandwidth_ThenEveryUserGetsTheSameShare() throws Exception {
+    IoGovernor governor = new IoGovernor();
+    governor.setGlobalBytesPerSecond(1024 * 1024);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500);
+    List<Thread> transfers = new ArrayList<>();
+    for (String username : List.of("maria", "maria", "maria", "john")) {
+      InputStream endless = new InputStream() {
+        @Override
+        public int read() {
+          return 0;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+          return length;
+        }
+      };
+      Thread transfer = new Thread(() -> {
+        try (IoGovernor.Permit permit = governor.admit(username);
+            InputStream in = permit.throttle(endless)) {
+          byte[] buffer = new byte[64 * 1024];
+          while (System.nanoTime() < deadline) {
+            in.read(buffer);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      transfer.start();
+      transfers.add(transfer);
+    }
+    for (Thread transfer : transfers) {
+      transfer.join();
+    }
+
+    // three transfers of maria don't get her more than the single one of john
+    double maria = governor.getMetrics("maria").bytes();
+    double john = governor.getMetrics("john").bytes();
+    Assertions.assertTrue(john / maria > 0.7, "maria " + maria + ", john " + john);
+  }
+
+  @Test
+  public void testAddRoot_ThenOnlyUsersOfTheNewRootMove() {
+    Path logicalRoot = Path.of(OUTPUT_TEST_5, "sharded");
+    List<Path> roots =
+        List.of(Path.of(OUTPUT_TEST_5, "shard-a"), Path.of(OUTPUT_TEST_5, "shard-b"));
+    Path newRoot = Path.of(OUTPUT_TEST_5, "shard-c").toAbsolutePath().normalize();
+    StorageRouter router = new StorageRouter(logicalRoot, roots);
+    StorageRouter restarted = new StorageRouter(logicalRoot, roots);
+    StorageRouter grown =
+        new StorageRouter(logicalRoot, List.of(roots.get(0), roots.get(1), newRoot));
+
+    int moved = 0;
+    for (int i = 0; i < 600; i++) {
+      String user = "user" + i;
+      Assertions.assertEquals(router.rootOf(user), restarted.rootOf(user));
+      Path root = grown.rootOf(user);
+      if (root.equals(newRoot)) {
+        moved++;
+      } else {
+        Assertions.assertEquals(router.rootOf(user), root);
+      }
+    }
+    // about a third of the users
+    Assertions.assertTrue(moved > 100 && moved < 300, moved + " users moved");
+  }
+
+  @Test
+  public void testRebalance_ThenMovedUsersAreServedFromTheNewRoot() throws IOException {
+    Path logicalRoot = Path.of(OUTPUT_TEST_5, "rebalanced");
+    Path oldRoot = Path.of(OUTPUT_TEST_5, "rebalance-a");
+    Path newRoot = Path.of(OUTPUT_TEST_5, "rebalance-b");
+    StorageRouter router = new StorageRouter(logicalRoot, List.of(oldRoot));
+    String user = userOfNewRoot(logicalRoot, oldRoot, newRoot);
+    Path file = logicalRoot.resolve(user).resolve("a.TXT");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    StorageRouter.setDefault(router);
+    try {
+      repositoryManager.put(new ByteArrayInputStream("content".getBytes()), file, user);
+      Path versions = new ClientFileResolver(file).getRepositoryDirectoryPath();
+      Files.writeString(versions.resolve(".upload-1234.tmp"), "half of an upload");
+      // a copy that was cut short, as long as the real file
+      Path stale = newRoot.resolve(user).resolve("a#TXT").resolve("a-v1.TXT");
+      Files.createDirectories(stale.getParent());
+      Files.writeString(stale, "CONTENT");
+
+      List<ShardRebalancer.Move> moves = new ShardRebalancer(router).addRoot(newRoot);
+
+      Assertions.assertEquals(List.of(user),
+          moves.stream().map(ShardRebalancer.Move::user).toList());
+      Path moved = new ClientFileResolver(file).getRepositoryFilePath(1);
+      Assertions.assertTrue(moved.startsWith(newRoot.toAbsolutePath().normalize()));
+      Assertions.assertEquals("content", Files.readString(moved));
+      Assertions.assertFalse(Files.exists(moved.resolveSibling(".upload-1234.tmp")));
+      Assertions.assertEquals(file.toAbsolutePath().normalize(),
+          repositoryManager.get(logicalRoot.resolve(user)).get(0).getDestination());
+
+      new ShardRebalancer(router).purge(moves.get(0));
+      Assertions.assertFalse(Files.exists(oldRoot.resolve(user)));
+    } finally {
+      StorageRouter.setDefault(StorageRouter.NONE);
+    }
+  }
+
+  @Test
+  public void testAddRoot_butNewUserUploadsMeanwhile_ThenUserIsNotStranded() throws Exception {
+    Path logicalRoot = Path.of(OUTPUT_TEST_5, "stranded");
+    Path oldRoot = Path.of(OUTPUT_TEST_5, "stranded-a");
+    Path newRoot = Path.of(OUTPUT_TEST_5, "stranded-b");
+    StorageRouter router = new StorageRouter(logicalRoot, List.of(oldRoot));
+    String user = userOfNewRoot(logicalRoot, oldRoot, newRoot);
+    Path file = logicalRoot.resolve(user).resolve("a.TXT");
+    ShardRebalancer rebalancer = new ShardRebalancer(router);
+    StorageRouter.setDefault(router);
+    try {
+      // the first upload of the user has started, on the old root
+      Lock upload = router.lockFor(file).readLock();
+      upload.lock();
+      CompletableFuture<List<ShardRebalancer.Move>> adding = CompletableFuture.supplyAsync(() -> {
+        try {
+          return rebalancer.addRoot(newRoot);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      Thread.sleep(200);
+      Assertions.assertFalse(adding.isDone());
+      new FileSystemRepositoryManager().put(new ByteArrayInputStream("content".getBytes()), file,
+          user);
+      upload.unlock();
+
+      Assertions.assertEquals(1, adding.get(5, TimeUnit.SECONDS).size());
+      Path version = new ClientFileResolver(file).getRepositoryFilePath(1);
+      Assertions.assertTrue(version.startsWith(newRoot.toAbsolutePath().normalize()));
+      Assertions.assertEquals("content", Files.readString(version));
+    } finally {
+      StorageRouter.setDefault(StorageRouter.NONE);
+    }
+  }
+
+  @Test
+  public void testAddRoot_whileAnotherUserUploads_ThenDoNotWaitForIt() throws Exception {
+    Path logicalRoot = Path.of(OUTPUT_TEST_5, "busy");
+    Path oldRoot = Path.of(OUTPUT_TEST_5, "busy-a");
+    Path newRoot = Path.of(OUTPUT_TEST_5, "busy-b");
+    StorageRouter router = new StorageRouter(logicalRoot, List.of(oldRoot));
+    StorageRouter grown = new StorageRouter(logicalRoot, List.of(oldRoot, newRoot));
+    String staying = IntStream.range(0, 1000).mapToObj(i -> "user" + i)
+        .filter(user -> grown.rootOf(user).equals(oldRoot.toAbsolutePath().normalize()))
+        .findFirst().orElseThrow();
+    // an upload of a user that doesn't move is running
+    Lock upload = router.lockFor(logicalRoot.resolve(staying).resolve("a.TXT")).readLock();
+    upload.lock();
+    try {
+      CompletableFuture<List<ShardRebalancer.Move>> adding = CompletableFuture.supplyAsync(() -> {
+        try {
+          return new ShardRebalancer(router).addRoot(newRoot);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      Assertions.assertEquals(List.of(), adding.get(5, TimeUnit.SECONDS));
+    } finally {
+      upload.unlock();
+    }
+  }
+
+  /**
+   * A user that moves from {@code oldRoot} when {@code newRoot} is added
+   */
+  private static String userOfNewRoot(Path logicalRoot, Path oldRoot, Path newRoot) {
+    StorageRouter grown = new StorageRouter(logicalRoot, List.of(oldRoot, newRoot));
+    return IntStream.range(0, 1000).mapToObj(i -> "user" + i)
+        .filter(user -> grown.rootOf(user).equals(newRoot.toAbsolutePath().normalize()))
+        .findFirst().orElseThrow();
+  }
+
+  @Test
+  public void testScrub_ThenFindTheCorruptedVersion() throws IOException {
+    Path file = ResourceUtils.getFile(INPUT_LOCATION + "test1.TXT").toPath();
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    for (int i = 0; i < 2; i++) {
+      repositoryManager.put(new FileInputStream(file.toString()),
+          Path.of(OUTPUT_TEST_4, file.toString()), "edam734");
+    }
+    Path version2 = ResourceUtils
+        .getFile(OUTPUT_TEST_4 + "repo/test1#TXT/test1-v2.TXT".replace("/", File.separator))
+        .toPath();
+    Files.writeString(version2, "My test2");
+    // a version in the cold tier that isn't gzip doesn't stop the scrub
+    Path version1 = version2.resolveSibling("test1-v1.TXT");
+    Files.move(version1, version1.resolveSibling("test1-v1.TXT" + ColdTier.COMPRESSED_SUFFIX));
+
+    List<IntegrityScrubber.Corruption> found = new ArrayList<>();
+    IntegrityScrubber scrubber =
+        new IntegrityScrubber(List.of(Path.of(OUTPUT_TEST_4)), 0, found::add);
+    IntegrityScrubber.ScrubReport report = scrubber.scrub();
+
+    Assertions.assertEquals(2, report.versionsChecked());
+    Assertions.assertEquals(2, report.corruptions().size());
+    Assertions.assertEquals(found, report.corruptions());
+    Assertions.assertEquals(1, found.get(0).version());
+    Assertions.assertNotNull(found.get(0).error());
+    Assertions.assertEquals(2, found.get(1).version());
+    Assertions.assertNull(found.get(1).error());
+    Assertions.assertEquals(Digests.digest(file, null), found.get(1).expected());
+  }
+
+  @Test
+  public void testRebuildSearchIndex_ThenFindByNameAndUploader() throws IOException {
+    Path directory = ResourceUtils.getFile(INPUT_LOCATION).toPath();
+    RepositorySearchIndex index = new RepositorySearchIndex();
+    Assertions.assertEquals(4, index.rebuild(List.of(directory), 2));
+
+    Page<FileHit> byName = index.findByName("TES", 0, 10);
+    Assertions.assertEquals(3, byName.total());
+    Page<FileHit> byExtension = index.findByExtension(".txt", 1, 2);
+    Assertions.assertEquals(4, byExtension.total());
+    Assertions.assertEquals(2, byExtension.items().size());
+    Assertions.assertTrue(byExtension.hasMore());
+
+    Page<VersionHit> byUploader = index.findByUploader("johnny_cash", 0, 1);
+    Assertions.assertEquals(2, byUploader.total());
+    Assertions.assertEquals(1, byUploader.items().size());
+    Assertions.assertEquals(2, byUploader.items().get(0).version());
+    Assertions.assertEquals(0, index.findByUploader("nobody", 0, 10).total());
+  }
+
+  @Test
+  public void testRebuildUsage_ThenRejectUploadOverQuota() throws IOException {
+    Path directory = ResourceUtils.getFile(INPUT_LOCATION).toPath();
+    UsageLedger ledger = new UsageLedger(directory, Path.of(OUTPUT_TEST_4, "usage.txt"));
+    ledger.rebuild();
+
+    long bytes = 0;
+    for (String version : List.of("test2#TXT/test2-v1.TXT", "test2#TXT/test2-v2.TXT",
+        "test2#TXT/test2-v3.TXT", "test3#TXT/test3-v1.TXT", "test3#TXT/test3-v2.TXT")) {
+      bytes += Files.size(directory.resolve("edam734").resolve(version));
+    }
+    Assertions.assertEquals(new Usage(bytes, 5), ledger.getUserUsage("edam734"));
+    Assertions.assertEquals(2, ledger.getUsage(directory.resolve("edam734/test3.TXT")).versions());
+
+    ledger.setQuota("edam734", bytes);
+    Assertions.assertThrows(QuotaExceededException.class,
+        () -> ledger.checkQuota(directory.resolve("edam734/test4.TXT"), -1));
+    ledger.checkQuota(directory.resolve("steven123/test4.TXT"), -1);
+
+    // two uploads running at the same time can't share the room left
+    ledger.setQuota("steven123", 100);
+    try (UsageLedger.Reservation upload =
+        ledger.reserve(directory.resolve("steven123/a.TXT"), 60)) {
+      Assertions.assertThrows(QuotaExceededException.class,
+          () -> ledger.reserve(directory.resolve("steven123/b.TXT"), 60));
+    }
+    ledger.reserve(directory.resolve("steven123/b.TXT"), 60).close();
+  }
+
+  @Test
+  public void testStartUsage_butLastRunCrashed_ThenRebuildCounters() throws IOException {
+    Path directory = Path.of(OUTPUT_TEST_5, "usage");
+    Path stateFile = Path.of(OUTPUT_TEST_5, "usage-state", "usage.txt");
+    RepositoryManager repositoryManager = new FileSystemRepositoryManager();
+    UsageLedger crashed = new UsageLedger(directory, stateFile);
+    crashed.start();
+    try {
+      repositoryManager.put(new ByteArrayInputStream("version 1".getBytes()),
+          directory.resolve("maria/data.TXT"), "maria");
+      crashed.save();
+      repositoryManager.put(new ByteArrayInputStream("version 2".getBytes()),
+          directory.resolve("maria/data.TXT"), "maria");
+
+      // the saved counters miss the second version, and the ledger was never closed
+      UsageLedger ledger = new UsageLedger(directory, stateFile);
+      ledger.start();
+      Assertions.assertEquals(new Usage(18, 2), ledger.getUserUsage("maria"));
+      ledger.close();
+    } finally {
+      crashed.close();
+    }
+  }
 }